@@ -0,0 +1,148 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Benchmark runner for the transfer and catalog hot paths.
+ *
+ * Each benchmark is an operation run for a number of warm-up and measured
+ * iterations on one or more threads. Every measured operation is timed on
+ * its own, and one row is printed per parameter combination with the
+ * throughput, the p50 and p99 latency and the allocation rate of the whole
+ * JVM (sender and leecher both run in this process).
+ *
+ *   java -cp bin Bench [send] [download] [list] [lookup]
+ *
+ * Parameters are comma-separated system properties:
+ *   -Dbench.sizes=65536,1048576,16777216   file sizes in bytes
+ *   -Dbench.chunks=1024,1472,8192          chunk sizes for the in-process send loop
+ *   -Dbench.clients=1,4,16                 concurrent leechers for loopback downloads
+ *   -Dbench.entries=100,10000,100000       catalog sizes for LIST and lookup
+ *   -Dbench.warmup=5 -Dbench.iterations=20 operations per thread
+ *
+ * Version: P05
+ * Author: JM MoLOMO
+ */
+public class Bench {
+
+    /**
+     * One benchmarked operation.
+     */
+    interface Op {
+        /**
+         * @param thread The index of the thread running the operation.
+         */
+        void run(int thread) throws Exception;
+    }
+
+    static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 20);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Bench() {
+    }
+
+    /**
+     * Runs the named suites, or all of them.
+     *
+     * @param args Suite names.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> suites = args.length == 0 ? List.of("send", "download", "list", "lookup") : Arrays.asList(args);
+        System.out.println(String.format(Locale.ROOT, "%-40s %12s %10s %12s %12s %10s %12s",
+                "benchmark", "ops/s", "MB/s", "p50 us", "p99 us", "alloc MB/s", "alloc B/op"));
+        for (String suite : suites) {
+            switch (suite) {
+                case "send" -> TransferBench.run();
+                case "download" -> LoopbackBench.run();
+                case "list" -> CatalogBench.runList();
+                case "lookup" -> CatalogBench.runLookup();
+                default -> System.err.println("Unknown suite: " + suite);
+            }
+        }
+    }
+
+    /**
+     * Times an operation and prints its row.
+     *
+     * @param name       The row label.
+     * @param threads    The number of threads running the operation concurrently.
+     * @param batch      Logical operations per call, for calls too short to time one by one.
+     * @param bytesPerOp Payload bytes moved by one call, or 0.
+     * @param op         The operation.
+     */
+    static void measure(String name, int threads, int batch, long bytesPerOp, Op op) throws Exception {
+        runThreads(threads, WARMUP, op, null);
+
+        long[][] samples = new long[threads][ITERATIONS];
+        long allocated = THREADS.getTotalThreadAllocatedBytes();
+        long start = System.nanoTime();
+        runThreads(threads, ITERATIONS, op, samples);
+        long elapsed = System.nanoTime() - start;
+        allocated = THREADS.getTotalThreadAllocatedBytes() - allocated;
+
+        long[] all = new long[threads * ITERATIONS];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(samples[t], 0, all, t * ITERATIONS, ITERATIONS);
+        }
+        Arrays.sort(all);
+        long calls = all.length;
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%-40s %12.1f %10.1f %12.3f %12.3f %10.1f %12.0f",
+                name,
+                calls * batch / seconds,
+                calls * bytesPerOp / seconds / (1 << 20),
+                percentile(all, 0.50) / 1e3 / batch,
+                percentile(all, 0.99) / 1e3 / batch,
+                allocated / seconds / (1 << 20),
+                (double) allocated / (calls * batch)));
+    }
+
+    /**
+     * Splits a comma-separated list of numbers from a system property.
+     */
+    static long[] param(String property, String defaults) {
+        String[] parts = System.getProperty(property, defaults).split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Long.parseLong(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static void runThreads(int threads, int iterations, Op op, long[][] samples) throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; i < iterations && failure.get() == null; i++) {
+                        long begin = System.nanoTime();
+                        op.run(thread);
+                        if (samples != null) {
+                            samples[thread][i] = System.nanoTime() - begin;
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * The catalog paths: reading List.txt, paging through LIST over loopback,
+ * and looking files up by id.
+ */
+final class CatalogBench {
+
+    // Lookups per timed call; one lookup is too short to time on its own
+    private static final int LOOKUPS = 1024;
+
+    private CatalogBench() {
+    }
+
+    /**
+     * Times loading List.txt and a full LIST round over loopback.
+     */
+    static void runList() throws Exception {
+        for (long entries : Bench.param("bench.entries", "100,10000,100000")) {
+            File dir = listDirectory((int) entries);
+            try {
+                Bench.measure("list-load entries=" + entries, 1, 1, 0, thread -> new Catalog(dir).load());
+
+                FileServer server = FileServer.open(0, dir);
+                try (FileClient client = new FileClient(new InetSocketAddress("localhost", server.port()))) {
+                    Bench.measure("list-pages entries=" + entries, 1, 1, 0, thread -> {
+                        if (client.list().size() != entries) {
+                            throw new IOException("Short list");
+                        }
+                    });
+                } finally {
+                    server.close();
+                }
+            } finally {
+                new File(dir, "List.txt").delete();
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * Times Catalog.get for random ids, most of which exist.
+     */
+    static void runLookup() throws Exception {
+        for (long entries : Bench.param("bench.entries", "100,10000,100000")) {
+            File dir = listDirectory((int) entries);
+            try {
+                Catalog catalog = new Catalog(dir);
+                catalog.load();
+                int[] ids = new int[LOOKUPS];
+                Random random = new Random(entries);
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = 1 + random.nextInt((int) (entries + entries / 10));
+                }
+                long[] found = new long[1];
+                Bench.measure("lookup entries=" + entries, 1, LOOKUPS, 0, thread -> {
+                    for (int id : ids) {
+                        if (catalog.get(id) != null) {
+                            found[0]++;
+                        }
+                    }
+                });
+            } finally {
+                new File(dir, "List.txt").delete();
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a List.txt with ids 1..entries. The listed files need not exist.
+     */
+    private static File listDirectory(int entries) throws IOException {
+        File dir = Files.createTempDirectory("bench-list").toFile();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(new File(dir, "List.txt")))) {
+            for (int id = 1; id <= entries; id++) {
+                out.write(id + " file-" + id + ".bin\n");
+            }
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A transport that misbehaves like a bad network, wrapped around a real one.
+ *
+ * Every datagram, in either direction, is independently dropped with the
+ * loss probability, delivered twice with the duplicate probability, or held
+ * back for a few milliseconds with the reorder probability, so the packets
+ * behind it overtake it. Since all of a server's traffic passes through its
+ * transport, impairing it there impairs every leecher, however it talks to
+ * the server. Held-back packets are delivered from a timer thread.
+ *
+ * Each direction draws its decisions from its own generator seeded from the
+ * seed, so a seed fixes the sequence of decisions per direction: a
+ * single-threaded exchange, such as one leecher, meets the same impairments
+ * on every run. With many leechers the order in which their packets reach
+ * the generator varies, so only the rates repeat, not which packet is hit.
+ */
+final class ImpairedTransport implements Transport {
+
+    private final Transport inner;
+    private final double loss;
+    private final double duplicate;
+    private final double reorder;
+    private final long delayMillis;
+    private final Random receiveRandom;
+    private final Random sendRandom;
+    private final ScheduledExecutorService delayed;
+
+    final LongAdder dropped = new LongAdder();
+    final LongAdder duplicated = new LongAdder();
+    final LongAdder reordered = new LongAdder();
+
+    /**
+     * @param inner       The transport that really sends and receives.
+     * @param loss        Probability of dropping a datagram.
+     * @param duplicate   Probability of delivering a datagram twice.
+     * @param reorder     Probability of holding a datagram back.
+     * @param delayMillis How long a held-back datagram waits.
+     * @param seed        Seed for the impairment decisions of both directions.
+     */
+    ImpairedTransport(Transport inner, double loss, double duplicate, double reorder, long delayMillis, long seed) {
+        this.inner = inner;
+        this.loss = loss;
+        this.duplicate = duplicate;
+        this.reorder = reorder;
+        this.delayMillis = delayMillis;
+        this.receiveRandom = new Random(seed);
+        this.sendRandom = new Random(~seed);
+        this.delayed = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "impaired-delay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * What happens to one datagram.
+     */
+    private enum Fate {
+        DELIVER, DROP, DUPLICATE, DELAY
+    }
+
+    private Fate fate(Random random) {
+        double r = random.nextDouble();
+        if (r < loss) {
+            dropped.increment();
+            return Fate.DROP;
+        }
+        if (r < loss + duplicate) {
+            duplicated.increment();
+            return Fate.DUPLICATE;
+        }
+        if (r < loss + duplicate + reorder) {
+            reordered.increment();
+            return Fate.DELAY;
+        }
+        return Fate.DELIVER;
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        inner.start((packet, from) -> {
+            switch (fate(receiveRandom)) {
+                case DROP -> {
+                }
+                case DUPLICATE -> {
+                    receiver.onPacket(packet.duplicate(), from);
+                    receiver.onPacket(packet, from);
+                }
+                case DELAY -> {
+                    ByteBuffer copy = copy(packet);
+                    delayed.schedule(() -> receiver.onPacket(copy, from), delayMillis, TimeUnit.MILLISECONDS);
+                }
+                case DELIVER -> receiver.onPacket(packet, from);
+            }
+        });
+    }
+
+    @Override
+    public void send(ByteBuffer packet, InetSocketAddress to) throws IOException {
+        switch (fate(sendRandom)) {
+            case DROP -> packet.position(packet.limit());
+            case DUPLICATE -> {
+                inner.send(packet.duplicate(), to);
+                inner.send(packet, to);
+            }
+            case DELAY -> {
+                // The caller may reuse its buffer as soon as this returns
+                ByteBuffer copy = copy(packet);
+                packet.position(packet.limit());
+                delayed.schedule(() -> {
+                    try {
+                        inner.send(copy, to);
+                    } catch (IOException e) {
+                        dropped.increment(); // A send that fails later is just another loss
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            case DELIVER -> inner.send(packet, to);
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer packet) {
+        return ByteBuffer.allocate(packet.remaining()).put(packet.duplicate()).flip();
+    }
+
+    @Override
+    public int localPort() {
+        return inner.localPort();
+    }
+
+    @Override
+    public long sendBufferFull() {
+        return inner.sendBufferFull();
+    }
+
+    @Override
+    public long sendDropped() {
+        return inner.sendDropped();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delayed.shutdownNow();
+        inner.close();
+    }
+}
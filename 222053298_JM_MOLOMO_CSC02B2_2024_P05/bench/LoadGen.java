@@ -0,0 +1,255 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator and soak test: one FileServer and many simulated leechers
+ * in one process, over loopback, through an ImpairedTransport.
+ *
+ * Each leecher has its own client and loops until the run ends, picking
+ * LIST or FILE at random, so the server sees the mixed control and bulk
+ * traffic of a real swarm. Every few seconds one line reports what the last
+ * interval achieved; the last line covers the whole run:
+ *
+ *   time, ops/s, MB/s of verified file data, LIST and FILE completion
+ *   p50/p99 in ms, errors (timeouts shown separately), retransmits, and the
+ *   packets the impairment dropped, duplicated and reordered.
+ *
+ *   java -cp bin LoadGen
+ *
+ * Parameters are system properties:
+ *   -Dload.clients=50          simulated leechers
+ *   -Dload.virtual=true        run leechers on virtual threads instead of platform threads
+ *   -Dload.seconds=60          length of the run
+ *   -Dload.report=10           seconds between report lines
+ *   -Dload.list=0.2            fraction of operations that are LIST; the rest are FILE
+ *   -Dload.files=65536,1048576 sizes of the served files, one file per size
+ *   -Dload.entries=1000        catalog size, so LIST takes several pages
+ *   -Dload.streams=1           streams per FILE; 1 uses the pipelined client's socket
+ *   -Dload.think=0             milliseconds a leecher waits between operations
+ *   -Dload.loss=0 -Dload.duplicate=0 -Dload.reorder=0   per-datagram probabilities
+ *   -Dload.delay=5             milliseconds a reordered datagram is held back
+ *   -Dload.seed=1              seed for the impairments; fixes their rates, not which packets they hit
+ *
+ * Lower -Dudp.requestTimeout to see lost requests as timeouts sooner, and
+ * set -Dudp.psk=secret to measure the run with every datagram sealed.
+ *
+ * Version: P05
+ * Author: JM MoLOMO
+ */
+public class LoadGen {
+
+    private static final int CLIENTS = Integer.getInteger("load.clients", 50);
+    private static final boolean VIRTUAL = Boolean.parseBoolean(System.getProperty("load.virtual", "true"));
+    private static final int SECONDS = Integer.getInteger("load.seconds", 60);
+    private static final int REPORT = Integer.getInteger("load.report", 10);
+    private static final double LIST = Double.parseDouble(System.getProperty("load.list", "0.2"));
+    private static final long[] FILES = Bench.param("load.files", "65536,1048576");
+    private static final int ENTRIES = Integer.getInteger("load.entries", 1000);
+    private static final int STREAMS = Integer.getInteger("load.streams", 1);
+    private static final long THINK = Long.getLong("load.think", 0);
+
+    /**
+     * Counters for one report interval; swapped out at each report.
+     */
+    private static final class Interval {
+        final LongAdder lists = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final Histogram listMillis = new Histogram();
+        final Histogram fileMillis = new Histogram();
+    }
+
+    private static volatile Interval interval = new Interval();
+    private static final Interval total = new Interval();
+
+    private LoadGen() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File root = Files.createTempDirectory("load").toFile();
+        try {
+            File served = new File(root, "sender");
+            writeCatalog(served);
+            ImpairedTransport transport = new ImpairedTransport(Transport.open(0),
+                    Double.parseDouble(System.getProperty("load.loss", "0")),
+                    Double.parseDouble(System.getProperty("load.duplicate", "0")),
+                    Double.parseDouble(System.getProperty("load.reorder", "0")),
+                    Long.getLong("load.delay", 5), Long.getLong("load.seed", 1));
+            // Sealing goes on top, so the impairments hit sealed frames as they would on a real network
+            FileServer server = new FileServer(SecureTransport.ifConfigured(transport), new Catalog(served));
+            server.start();
+            try {
+                run(root, new InetSocketAddress("localhost", server.port()), server, transport);
+            } finally {
+                server.close();
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void run(File root, InetSocketAddress address, FileServer server, ImpairedTransport transport)
+            throws InterruptedException {
+        System.out.println(String.format(Locale.ROOT, "%d leechers on %s threads for %d s, files %s, list %.0f%%",
+                CLIENTS, VIRTUAL ? "virtual" : "platform", SECONDS, Arrays.toString(FILES), LIST * 100));
+        System.out.println(String.format(Locale.ROOT, "%8s %9s %9s %9s %9s %9s %9s %7s %8s %8s %8s %8s %8s",
+                "time s", "ops/s", "MB/s", "list p50", "list p99", "file p50", "file p99", "errors", "timeouts",
+                "retrans", "dropped", "dup", "reorder"));
+
+        long start = System.currentTimeMillis();
+        long deadline = start + SECONDS * 1000L;
+        CountDownLatch done = new CountDownLatch(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            File dir = new File(root, "leecher-" + i);
+            Runnable leecher = () -> {
+                try {
+                    leech(address, dir, deadline);
+                } finally {
+                    done.countDown();
+                }
+            };
+            if (VIRTUAL) {
+                Thread.ofVirtual().name("leecher-" + i).start(leecher);
+            } else {
+                Thread.ofPlatform().name("leecher-" + i).start(leecher);
+            }
+        }
+
+        // Report at each interval and at the deadline; operations still in flight then finish into the total
+        long last = start;
+        long next = Math.min(start + REPORT * 1000L, deadline);
+        while (!done.await(Math.max(1, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            long now = System.currentTimeMillis();
+            if (now >= next) {
+                Interval finished = interval;
+                interval = new Interval();
+                report((now - start) / 1000 + "", finished, now - last, server, transport);
+                last = now;
+                next = now < deadline ? Math.min(now + REPORT * 1000L, deadline) : now + REPORT * 1000L;
+            }
+        }
+        report("total", total, System.currentTimeMillis() - start, server, transport);
+    }
+
+    /**
+     * One simulated leecher: LIST or FILE at random until the deadline.
+     */
+    private static void leech(InetSocketAddress address, File dir, long deadline) {
+        try (FileClient client = new FileClient(address)) {
+            while (System.currentTimeMillis() < deadline) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long begin = System.nanoTime();
+                try {
+                    if (random.nextDouble() < LIST) {
+                        List<CatalogEntry> entries = client.list();
+                        if (entries.size() != ENTRIES + FILES.length) {
+                            throw new IOException("List has " + entries.size() + " entries");
+                        }
+                        record(begin, 0, true);
+                    } else {
+                        int id = 1 + random.nextInt(FILES.length);
+                        File file = STREAMS == 1
+                                ? client.async().get(id, dir).join()
+                                : client.get(id, dir, STREAMS);
+                        long size = file.length();
+                        if (size != FILES[id - 1]) {
+                            throw new IOException("Got " + size + " bytes of file " + id);
+                        }
+                        file.delete(); // Next time is a fresh download, not a resume
+                        record(begin, size, false);
+                    }
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    boolean timeout = cause instanceof TimeoutException
+                            || cause instanceof SocketTimeoutException
+                            || String.valueOf(cause.getMessage()).contains("timed out");
+                    Interval current = interval;
+                    for (Interval counters : new Interval[] { current, total }) {
+                        (timeout ? counters.timeouts : counters.errors).increment();
+                    }
+                }
+                if (THINK > 0) {
+                    Thread.sleep(THINK);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Leecher stopped: " + e);
+        }
+    }
+
+    private static void record(long begin, long bytes, boolean list) {
+        long millis = (System.nanoTime() - begin) / 1_000_000;
+        // One read of the interval, so a report swapping it mid-way cannot split the operation across two lines
+        Interval current = interval;
+        for (Interval counters : new Interval[] { current, total }) {
+            (list ? counters.lists : counters.files).increment();
+            (list ? counters.listMillis : counters.fileMillis).record(millis);
+            counters.bytes.add(bytes);
+        }
+    }
+
+    private static void report(String label, Interval counters, long elapsedMillis, FileServer server,
+            ImpairedTransport transport) {
+        double seconds = Math.max(1, elapsedMillis) / 1000.0;
+        System.out.println(String.format(Locale.ROOT, "%8s %9.1f %9.1f %9d %9d %9d %9d %7d %8d %8d %8d %8d %8d",
+                label,
+                (counters.lists.sum() + counters.files.sum()) / seconds,
+                counters.bytes.sum() / seconds / (1 << 20),
+                counters.listMillis.percentile(0.50), counters.listMillis.percentile(0.99),
+                counters.fileMillis.percentile(0.50), counters.fileMillis.percentile(0.99),
+                counters.errors.sum(), counters.timeouts.sum(),
+                server.metrics().getRetransmits(),
+                transport.dropped.sum(), transport.duplicated.sum(), transport.reordered.sum()));
+    }
+
+    /**
+     * Writes one random file per size and a List.txt padded with extra
+     * entries, so LIST replies span several pages.
+     */
+    private static void writeCatalog(File served) throws IOException {
+        served.mkdirs();
+        try (FileWriter list = new FileWriter(new File(served, "List.txt"))) {
+            Random random = new Random(1);
+            byte[] block = new byte[64 * 1024];
+            for (int i = 0; i < FILES.length; i++) {
+                String name = "file-" + FILES[i] + ".bin";
+                try (RandomAccessFile out = new RandomAccessFile(new File(served, name), "rw")) {
+                    for (long written = 0; written < FILES[i]; written += block.length) {
+                        random.nextBytes(block);
+                        out.write(block, 0, (int) Math.min(block.length, FILES[i] - written));
+                    }
+                }
+                list.write((i + 1) + " " + name + "\n");
+            }
+            for (int i = 0; i < ENTRIES; i++) {
+                list.write((1000 + i) + " placeholder-" + i + ".bin\n");
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
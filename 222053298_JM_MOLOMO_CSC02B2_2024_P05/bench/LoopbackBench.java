@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Whole downloads over loopback: a FileServer and several leechers in one
+ * process, each leecher fetching the same file over a single stream, the
+ * path the DOWNLOAD button takes (STAT, FILE, the receive-and-write loop,
+ * the bitmap and the final checksum).
+ */
+final class LoopbackBench {
+
+    private LoopbackBench() {
+    }
+
+    static void run() throws Exception {
+        File root = Files.createTempDirectory("bench").toFile();
+        try {
+            for (long size : Bench.param("bench.sizes", "65536,1048576,16777216")) {
+                File served = new File(root, "sender-" + size);
+                served.mkdirs();
+                writeFile(new File(served, "file.bin"), size);
+                try (FileWriter list = new FileWriter(new File(served, "List.txt"))) {
+                    list.write("1 file.bin\n");
+                }
+
+                FileServer server = FileServer.open(0, served);
+                try {
+                    InetSocketAddress address = new InetSocketAddress("localhost", server.port());
+                    for (long clients : Bench.param("bench.clients", "1,4,16")) {
+                        download(root, address, size, (int) clients);
+                    }
+                } finally {
+                    server.close();
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void download(File root, InetSocketAddress address, long size, int clients) throws Exception {
+        FileClient[] leechers = new FileClient[clients];
+        File[] dirs = new File[clients];
+        for (int i = 0; i < clients; i++) {
+            leechers[i] = new FileClient(address);
+            dirs[i] = new File(root, "leecher-" + i);
+        }
+        try {
+            Bench.measure("download size=" + size + " clients=" + clients + " chunk=" + MtuProbe.chunkSize(address),
+                    clients, 1, size, thread -> {
+                        File file = leechers[thread].get(1, dirs[thread], 1);
+                        file.delete(); // Next round is a fresh download, not a resume
+                    });
+        } finally {
+            for (FileClient leecher : leechers) {
+                leecher.close();
+            }
+        }
+    }
+
+    private static void writeFile(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
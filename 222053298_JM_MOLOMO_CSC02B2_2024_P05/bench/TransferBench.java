@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * The chunk send loop and the receive loop, wired back to back in memory.
+ *
+ * A WindowedSender reads chunks from a byte array and its packets are handed
+ * straight to a WindowedReceiver, whose ACKs go straight back, so the row
+ * measures the protocol code (framing, CRC32C, window bookkeeping, the copy
+ * into the output) without the socket. Chunk size is a parameter here; the
+ * loopback download uses whatever MtuProbe negotiates (see -Dudp.probe).
+ */
+final class TransferBench {
+
+    private TransferBench() {
+    }
+
+    static void run() throws Exception {
+        for (long size : Bench.param("bench.sizes", "65536,1048576,16777216")) {
+            byte[] file = new byte[(int) size];
+            new Random(size).nextBytes(file);
+            byte[] output = new byte[file.length];
+            for (long chunkSize : Bench.param("bench.chunks", "1024,1472,8192")) {
+                Loop loop = new Loop(file, output, (int) chunkSize, Protocol.WINDOW_SIZE);
+                Bench.measure("send size=" + size + " chunk=" + chunkSize, 1, 1, size, thread -> loop.transfer());
+            }
+        }
+    }
+
+    /**
+     * One sender and one receiver sharing reusable buffers across transfers.
+     */
+    private static final class Loop {
+
+        private final byte[] file;
+        private final byte[] output;
+        private final int chunkSize;
+        private final int window;
+        private final BufferPool pool;
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> wire = new ArrayDeque<>();
+        private final ByteBuffer ack = ByteBuffer.allocate(Protocol.ACK_LENGTH);
+
+        Loop(byte[] file, byte[] output, int chunkSize, int window) {
+            this.file = file;
+            this.output = output;
+            this.chunkSize = chunkSize;
+            this.window = window;
+            this.pool = new BufferPool(Protocol.DATA_HEADER + chunkSize, window);
+            for (int i = 0; i < 2 * window; i++) {
+                free.add(ByteBuffer.allocate(Protocol.DATA_HEADER + chunkSize));
+            }
+        }
+
+        void transfer() throws IOException {
+            int chunks = Protocol.chunkCount(file.length, chunkSize);
+            WindowedReceiver receiver = new WindowedReceiver(1, chunks, chunkSize, window,
+                    (index, payload, crc) -> payload.get(output, index * chunkSize, payload.remaining()));
+            WindowedSender sender = new WindowedSender(1, chunks, chunkSize, window, pool,
+                    (index, dst) -> {
+                        int offset = index * chunkSize;
+                        int n = Math.min(chunkSize, file.length - offset);
+                        dst.put(file, offset, n);
+                        return n;
+                    },
+                    packet -> {
+                        // Copy, as the socket would, so the sender may reuse its buffer
+                        ByteBuffer copy = free.poll();
+                        copy.clear();
+                        copy.put(packet).flip();
+                        wire.add(copy);
+                    },
+                    CongestionControl.create(window), Pacer.NONE);
+            try {
+                while (!sender.isDone()) {
+                    sender.pump();
+                    ByteBuffer packet;
+                    while ((packet = wire.poll()) != null) {
+                        receiver.onData(packet);
+                        free.add(packet);
+                        receiver.writeAck(ack);
+                        sender.onAck(ack);
+                    }
+                }
+            } finally {
+                sender.release();
+            }
+            if (!receiver.isComplete()) {
+                throw new IOException("Transfer did not complete");
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+REM Builds and runs the benchmark suite in ..\bench against the sources in ..\src.
+REM Usage: bench.bat [send] [download] [list] [lookup]
+REM Parameters are system properties, see bench\Bench.java, e.g.
+REM   set BENCH_ARGS=-Dbench.sizes=1048576 -Dbench.clients=1,8 -Dudp.probe=1472
+
+REM Turn echo off and clear the screen.
+@echo off
+cls
+
+REM Good batch file coding practice.
+setlocal enabledelayedexpansion
+
+REM Paths for JDK
+REM Remember to change JAVA_HOME to the correct path on your system
+echo Change JAVA_HOME path
+
+set JAVA_HOME="C:\jdk-21"
+set PATH=%JAVA_HOME%\bin;%PATH%
+
+REM Variable for error messages
+set ERRMSG=
+
+REM Move to correct folder.
+echo Bench script set to run in Project folder
+cd ..
+
+REM Variables for batch
+set PRAC_BIN=.\bin
+set PRAC_BENCH=.\bench
+set PRAC_DOCS=.\docs
+set PRAC_SRC=.\src
+
+REM Compile the benchmarks. They reference the engine classes only, so JavaFX is not needed.
+:COMPILE
+echo ~~~ Compiling benchmarks ~~~
+javac -sourcepath %PRAC_SRC%;%PRAC_BENCH% -cp %PRAC_BIN% -d %PRAC_BIN% %PRAC_BENCH%\*.java
+IF /I "%ERRORLEVEL%" NEQ "0" (
+    set ERRMSG=~~! Error compiling benchmarks !~~
+    GOTO ERROR
+)
+
+REM Run the benchmarks with a fixed heap so runs are comparable.
+:RUN
+echo ~~~ Running benchmarks ~~~
+java -Xms1g -Xmx1g %BENCH_ARGS% -cp %PRAC_BIN% Bench %*
+IF /I "%ERRORLEVEL%" NEQ "0" (
+    set ERRMSG=~~! Error running benchmarks !~~
+    GOTO ERROR
+)
+GOTO END
+
+REM Something went wrong, display error.
+:ERROR
+echo ~~! Fatal error with benchmarks !~~
+echo %ERRMSG%
+
+REM Move back to docs folder and wait.
+:END
+echo ~~~ End ~~~
+cd %PRAC_DOCS%
+pause
@@ -10,10 +10,10 @@ REM Good batch file coding practice.
 setlocal enabledelayedexpansion
 
 REM Paths for JDK
-REM Remember to change JAVA_HOME to the correct path on your system
+REM Remember to change JAVA_HOME to the correct path on your system; the engine needs JDK 21 or later
 echo Change JAVA_HOME path
 
-set JAVA_HOME="C:\jdk-17"
+set JAVA_HOME="C:\jdk-21"
 set PATH=%JAVA_HOME%\bin;%PATH%
 REM Paths for JavaFX
 set USE_JAVAFX=true
@@ -60,10 +60,11 @@ IF /I "%ERRORLEVEL%" NEQ "0" (
     echo ~~! Error cleaning project !~~
 )
 
-REM Compile project by compiling just UDP. UDP will reference required classes.
+REM Compile project by compiling UDP and Cli. They will reference required classes.
+REM Cli is the headless entry point: java -cp bin Cli serve [port] [directory]
 :COMPILE
 echo ~~~ Compiling project ~~~
-javac %JAVAFX_ARGS% -sourcepath %PRAC_SRC% -cp %PRAC_BIN%;%PRAC_LIB% -d %PRAC_BIN% %PRAC_SRC%\UDP.java
+javac %JAVAFX_ARGS% -sourcepath %PRAC_SRC% -cp %PRAC_BIN%;%PRAC_LIB% -d %PRAC_BIN% %PRAC_SRC%\UDP.java %PRAC_SRC%\Cli.java
 IF /I "%ERRORLEVEL%" NEQ "0" (
     set ERRMSG=~~! Error compiling project !~~
     GOTO ERROR
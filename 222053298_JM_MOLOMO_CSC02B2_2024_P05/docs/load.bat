@@ -0,0 +1,61 @@
+REM Builds and runs the loopback load generator in ..\bench against the sources in ..\src.
+REM Usage: load.bat
+REM Parameters are system properties, see bench\LoadGen.java, e.g.
+REM   set LOAD_ARGS=-Dload.clients=200 -Dload.seconds=3600 -Dload.loss=0.01 -Dload.reorder=0.01
+
+REM Turn echo off and clear the screen.
+@echo off
+cls
+
+REM Good batch file coding practice.
+setlocal enabledelayedexpansion
+
+REM Paths for JDK
+REM Remember to change JAVA_HOME to the correct path on your system
+echo Change JAVA_HOME path
+
+set JAVA_HOME="C:\jdk-21"
+set PATH=%JAVA_HOME%\bin;%PATH%
+
+REM Variable for error messages
+set ERRMSG=
+
+REM Move to correct folder.
+echo Load script set to run in Project folder
+cd ..
+
+REM Variables for batch
+set PRAC_BIN=.\bin
+set PRAC_BENCH=.\bench
+set PRAC_DOCS=.\docs
+set PRAC_SRC=.\src
+
+REM Compile the benchmarks. They reference the engine classes only, so JavaFX is not needed.
+:COMPILE
+echo ~~~ Compiling benchmarks ~~~
+javac -sourcepath %PRAC_SRC%;%PRAC_BENCH% -cp %PRAC_BIN% -d %PRAC_BIN% %PRAC_BENCH%\*.java
+IF /I "%ERRORLEVEL%" NEQ "0" (
+    set ERRMSG=~~! Error compiling benchmarks !~~
+    GOTO ERROR
+)
+
+REM Run the soak with a fixed heap so runs are comparable.
+:RUN
+echo ~~~ Running load generator ~~~
+java -Xms1g -Xmx1g %LOAD_ARGS% -cp %PRAC_BIN% LoadGen
+IF /I "%ERRORLEVEL%" NEQ "0" (
+    set ERRMSG=~~! Error running load generator !~~
+    GOTO ERROR
+)
+GOTO END
+
+REM Something went wrong, display error.
+:ERROR
+echo ~~! Fatal error with load generator !~~
+echo %ERRMSG%
+
+REM Move back to docs folder and wait.
+:END
+echo ~~~ End ~~~
+cd %PRAC_DOCS%
+pause
@@ -0,0 +1,46 @@
+/**
+ * Additive-increase / multiplicative-decrease window.
+ *
+ * Starts small and doubles every round trip (slow start) until the first
+ * loss, then grows by one packet per round trip and halves on each loss,
+ * so a transfer settles near the bandwidth the path can carry instead of
+ * flooding the receiver's socket buffer.
+ */
+public class AimdControl implements CongestionControl {
+
+    private static final double INITIAL_WINDOW = 10;
+    private static final double MIN_WINDOW = 2;
+
+    private final int maxWindow;
+    private double window = INITIAL_WINDOW;
+    private double threshold;
+
+    /**
+     * @param maxWindow The largest window the sender can track.
+     */
+    public AimdControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.threshold = maxWindow;
+    }
+
+    @Override
+    public int window() {
+        return (int) Math.min(maxWindow, window);
+    }
+
+    @Override
+    public void onAck(int acked) {
+        if (window < threshold) {
+            window += acked;
+        } else {
+            window += acked / window;
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    @Override
+    public void onLoss(boolean timeout) {
+        threshold = Math.max(MIN_WINDOW, window / 2);
+        window = timeout ? MIN_WINDOW : threshold;
+    }
+}
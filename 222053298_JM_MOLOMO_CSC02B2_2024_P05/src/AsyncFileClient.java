@@ -0,0 +1,554 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leecher engine with any number of requests in flight on one socket.
+ *
+ * Every text request goes out as "#tag command" and the server puts the
+ * same tag in front of its reply; a single receive thread hands each reply
+ * to the future waiting on its tag, and each DATA packet to the download
+ * whose transfer id it carries, so LIST pages, STATs and several FILE
+ * transfers can share the socket without stealing each other's replies.
+ * Every request fails with a TimeoutException after its own timeout, by
+ * default -Dudp.requestTimeout milliseconds (20000). Callbacks on the
+ * returned futures may run on the receive thread, so they should hand
+ * slow work to another thread.
+ *
+ * With -Dudp.psk set, the client runs a Handshake when it is created and
+ * seals every datagram on the socket with the resulting SecureSession.
+ * With -Dudp.compress=deflate, FILE requests ask for compressed chunks.
+ */
+public class AsyncFileClient implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(AsyncFileClient.class.getName());
+
+    /** Default milliseconds a request waits for its reply. */
+    public static final long REQUEST_TIMEOUT = Long.getLong("udp.requestTimeout", Downloads.REPLY_TIMEOUT);
+
+    // A transfer with no DATA for this long is abandoned; one silent for a second is prodded with an ACK
+    private static final long MAX_IDLE = 20_000;
+    private static final long ACK_IDLE = 1000;
+
+    // How long a finished transfer still answers retransmissions, for when its last ACK was lost
+    private static final long LINGER = 1000;
+
+    private record Pending(CompletableFuture<String> reply, Consumer<String> onReply) {
+    }
+
+    private final InetSocketAddress server;
+    private final DatagramChannel channel;
+    /** Seals and opens every datagram, or null if -Dudp.psk is not set. */
+    private final SecureSession session;
+    private final BufferPool sealPool = new BufferPool(Protocol.MIN_CHUNK_SIZE + Protocol.DATA_HEADER, 64);
+    private final Thread receiver;
+    private final ScheduledExecutorService timer;
+    private final AtomicInteger nextTag = new AtomicInteger();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, Download> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a client for one server on an ephemeral local port and starts its receive thread.
+     *
+     * @param server The server address.
+     */
+    public AsyncFileClient(InetSocketAddress server) throws IOException {
+        this.server = server;
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.bind(null);
+        // Room for a full window of several transfers at once
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        try {
+            this.session = Handshake.enabled() ? Handshake.connect(channel.socket(), server) : null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.receiver = new Thread(this::receiveLoop, "udp-client-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "udp-client-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::tick, 250, 250, TimeUnit.MILLISECONDS);
+    }
+
+    public InetSocketAddress server() {
+        return server;
+    }
+
+    /**
+     * Sends a text request and completes with the reply, without its tag.
+     *
+     * @param command       The request text, such as "LIST 0".
+     * @param timeoutMillis How long to wait for the reply.
+     * @return The reply text; fails with a TimeoutException if none came in time.
+     */
+    public CompletableFuture<String> request(String command, long timeoutMillis) {
+        return request(command, timeoutMillis, null);
+    }
+
+    /**
+     * @param onReply Called on the receive thread with the reply before the
+     *                future completes, or null; lets a FILE request register
+     *                its transfer before the first DATA packet is read.
+     */
+    private CompletableFuture<String> request(String command, long timeoutMillis, Consumer<String> onReply) {
+        int tag = nextTag.incrementAndGet() & Integer.MAX_VALUE;
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        pending.put(tag, new Pending(reply, onReply));
+        reply.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((text, e) -> pending.remove(tag));
+        try {
+            send(ByteBuffer.wrap(("#" + tag + " " + command).getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    /**
+     * Fetches the full file list. The first page says how many there are;
+     * the rest are then requested all at once.
+     *
+     * @return Every file the server offers, in catalog order, with sizes and checksums UNKNOWN.
+     */
+    public CompletableFuture<List<CatalogEntry>> list() {
+        return request("LIST 0", REQUEST_TIMEOUT).thenCompose(first -> {
+            int pageCount = Integer.parseInt(listHeader(first)[2]);
+            List<CompletableFuture<String>> pages = new ArrayList<>();
+            pages.add(CompletableFuture.completedFuture(first));
+            for (int page = 1; page < pageCount; page++) {
+                pages.add(request("LIST " + page, REQUEST_TIMEOUT));
+            }
+            return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                List<CatalogEntry> entries = new ArrayList<>();
+                for (CompletableFuture<String> page : pages) {
+                    String[] lines = page.join().split("\n");
+                    listHeader(lines[0]);
+                    for (int i = 1; i < lines.length; i++) {
+                        String[] parts = lines[i].split(" ", 2);
+                        if (parts.length == 2) {
+                            entries.add(new CatalogEntry(Integer.parseInt(parts[0]), parts[1],
+                                    CatalogEntry.UNKNOWN, CatalogEntry.UNKNOWN));
+                        }
+                    }
+                }
+                return entries;
+            });
+        });
+    }
+
+    /**
+     * @return The fields of a page's "LIST page pageCount total next" line.
+     */
+    private static String[] listHeader(String page) {
+        if (!page.startsWith("LIST ")) {
+            throw new CompletionException(new IOException("List request failed: " + page));
+        }
+        return page.substring(0, page.indexOf('\n') < 0 ? page.length() : page.indexOf('\n')).split(" ");
+    }
+
+    /**
+     * Asks the server for a file's size, checksum and name.
+     *
+     * @param fileId The id of the file.
+     * @return The server's catalog entry.
+     */
+    public CompletableFuture<CatalogEntry> stat(int fileId) {
+        return request("STAT " + fileId, REQUEST_TIMEOUT).thenApply(reply -> {
+            String[] parts = reply.split(" ", 5);
+            if (!reply.startsWith("STAT ") || parts.length < 5) {
+                throw new CompletionException(new IOException("Stat failed: " + reply));
+            }
+            return new CatalogEntry(fileId, parts[4], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        });
+    }
+
+    /**
+     * Downloads a file on this client's socket, resuming an earlier partial
+     * download of it. Every missing range of a resumed file is requested at
+     * once and arrives as its own transfer.
+     *
+     * @param fileId    The id of the file.
+     * @param outputDir The directory to write it to.
+     * @return The downloaded file, once its checksum has been verified.
+     */
+    public CompletableFuture<File> get(int fileId, File outputDir) {
+        // Off the receive thread: opening the files and probing the path block
+        return stat(fileId).thenComposeAsync(entry -> {
+            try {
+                return fetch(entry, outputDir);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private CompletableFuture<File> fetch(CatalogEntry entry, File outputDir) throws IOException {
+        outputDir.mkdirs();
+        File outputFile = new File(outputDir, entry.name());
+        File sidecar = new File(outputDir, entry.name() + ".part");
+        if (!outputFile.exists()) {
+            sidecar.delete(); // Progress without the partial file is worthless
+        }
+        int chunkSize = ChunkBitmap.blockSizeOf(sidecar);
+        if (chunkSize <= 0) {
+            chunkSize = MtuProbe.chunkSize(server);
+        }
+        ChunkBitmap bitmap = ChunkBitmap.open(sidecar, entry.size(), entry.checksum(), chunkSize);
+        FileChannel file;
+        try {
+            OpenOption[] options = bitmap.isResumed()
+                    ? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE }
+                    : new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING };
+            file = FileChannel.open(outputFile.toPath(), options);
+        } catch (IOException e) {
+            bitmap.close();
+            throw e;
+        }
+
+        List<long[]> missing = bitmap.missingRanges();
+        Fetch fetch = new Fetch(file, bitmap, missing.size());
+        for (int i = 0; i < missing.size(); i++) {
+            long[] range = missing.get(i);
+            CompletableFuture<Void> done = fetch.ranges.get(i);
+            // Off the thread that failed it, which may hold a download's lock
+            done.whenCompleteAsync((ok, e) -> {
+                if (e != null) {
+                    fetch.cancel(e);
+                }
+            });
+            request("FILE " + entry.id() + " " + range[0] + " " + range[1] + " " + chunkSize
+                    + (ParallelDownloader.COMPRESS ? " deflate" : ""), REQUEST_TIMEOUT,
+                    reply -> startDownload(reply, fetch, done))
+                    .whenComplete((reply, e) -> {
+                        if (e != null) {
+                            done.completeExceptionally(e);
+                        }
+                    });
+        }
+        // Every range is done only once a failed one has cancelled and drained the rest
+        return CompletableFuture.allOf(fetch.ranges.toArray(new CompletableFuture<?>[0])).handle((ok, e) -> {
+            try (bitmap; file) {
+                if (e != null) {
+                    Throwable cause = fetch.cause() != null ? fetch.cause() : e;
+                    throw cause instanceof CompletionException ce ? ce : new CompletionException(cause);
+                }
+                if (bitmap.fileChecksum() != entry.checksum()) {
+                    bitmap.delete(); // Start over next time
+                    throw new CompletionException(new IOException("Checksum mismatch: " + entry.name()));
+                }
+                bitmap.delete();
+                return outputFile;
+            } catch (IOException io) {
+                throw new CompletionException(io);
+            }
+        });
+    }
+
+    /**
+     * Registers the transfer a FILE header announces. Runs on the receive
+     * thread, so the transfer is known before its first DATA packet is read.
+     */
+    private void startDownload(String reply, Fetch fetch, CompletableFuture<Void> done) {
+        ChunkBitmap bitmap = fetch.bitmap;
+        TransferHeader header = TransferHeader.parse(reply);
+        if (header == null) {
+            done.completeExceptionally(new IOException("File request failed: " + reply));
+        } else if (header.checksum() != bitmap.expectedChecksum()) {
+            done.completeExceptionally(new IOException("File changed on the server: " + header.name()));
+        } else if (header.chunkSize() != bitmap.blockSize()) {
+            done.completeExceptionally(new IOException("Server chunk size " + header.chunkSize() + " does not match "
+                    + bitmap.blockSize()));
+        } else {
+            fetch.register(header, done);
+        }
+    }
+
+    /**
+     * Sends a packet to the server, sealed if the client is secure. Safe to call from any thread.
+     */
+    private void send(ByteBuffer packet) throws IOException {
+        if (session == null) {
+            channel.send(packet, server);
+            return;
+        }
+        int length = packet.remaining() + SecureSession.OVERHEAD;
+        ByteBuffer frame = length <= sealPool.bufferSize() ? sealPool.acquire() : ByteBuffer.allocate(length);
+        try {
+            session.send(packet, frame, sealed -> channel.send(sealed, server));
+        } finally {
+            sealPool.release(frame);
+        }
+    }
+
+    /**
+     * Reads every datagram on the socket and routes it by tag or transfer id.
+     */
+    private void receiveLoop() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(Transport.MAX_DATAGRAM);
+        ByteBuffer frame = session == null ? null : ByteBuffer.allocateDirect(Transport.MAX_DATAGRAM);
+        while (channel.isOpen()) {
+            try {
+                buf.clear();
+                if (session == null) {
+                    channel.receive(buf);
+                } else {
+                    channel.receive(frame.clear());
+                    if (!session.open(frame.flip(), buf)) {
+                        continue; // Forged, replayed or not from the server
+                    }
+                }
+                buf.flip();
+                if (buf.limit() >= Protocol.DATA_HEADER && Protocol.isData(buf)) {
+                    Download download = downloads.get(Protocol.transferId(buf));
+                    if (download != null) {
+                        download.onData(buf);
+                    }
+                } else if (!Protocol.isPacket(buf)) {
+                    reply(StandardCharsets.UTF_8.decode(buf).toString());
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Receive failed", e);
+            }
+        }
+    }
+
+    /**
+     * Completes the request a tagged reply answers. Untagged and late replies are dropped.
+     */
+    private void reply(String text) {
+        int space = text.indexOf(' ');
+        if (!text.startsWith("#") || space < 0) {
+            return;
+        }
+        Pending request;
+        try {
+            request = pending.remove(Integer.parseInt(text.substring(1, space)));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (request != null) {
+            String reply = text.substring(space + 1);
+            if (request.onReply() != null) {
+                request.onReply().accept(reply);
+            }
+            request.reply().complete(reply);
+        }
+    }
+
+    /**
+     * Prods silent transfers with an ACK, gives up on dead ones and drops
+     * finished ones once they have lingered.
+     */
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Download download : downloads.values()) {
+            download.tick(now);
+        }
+    }
+
+    /**
+     * Stops the receive thread and fails everything still in flight.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Close failed", e);
+        }
+        timer.shutdownNow();
+        IOException closed = new IOException("Client closed");
+        for (Pending request : pending.values()) {
+            request.reply().completeExceptionally(closed);
+        }
+        for (Download download : downloads.values()) {
+            download.cancel();
+            download.done.completeExceptionally(closed);
+        }
+        downloads.clear();
+    }
+
+    /**
+     * The ranges of one file fetched at once, sharing its channel and bitmap.
+     * When one range fails, the others are cancelled and drained before the
+     * channel and bitmap are closed under them.
+     */
+    private final class Fetch {
+
+        final FileChannel file;
+        final ChunkBitmap bitmap;
+        final List<CompletableFuture<Void>> ranges;
+
+        // Guarded by this
+        private final List<Download> started = new ArrayList<>();
+        private Throwable cause;
+
+        /**
+         * @param count The number of ranges; each has its future before any request goes out.
+         */
+        Fetch(FileChannel file, ChunkBitmap bitmap, int count) {
+            this.file = file;
+            this.bitmap = bitmap;
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                futures.add(new CompletableFuture<>());
+            }
+            this.ranges = List.copyOf(futures);
+        }
+
+        /**
+         * Starts routing a range's DATA to a new download, unless the fetch was cancelled.
+         */
+        void register(TransferHeader header, CompletableFuture<Void> done) {
+            Download download = new Download(header, file, bitmap, done);
+            synchronized (this) {
+                if (cause == null) {
+                    started.add(download);
+                    downloads.put(header.transferId(), download);
+                    return;
+                }
+            }
+            done.completeExceptionally(new IOException("Cancelled: another range failed"));
+        }
+
+        /**
+         * Stops every range after the first failure. Each download is
+         * cancelled under its own lock, so none is still writing when the
+         * last range completes.
+         */
+        void cancel(Throwable failure) {
+            List<Download> running;
+            synchronized (this) {
+                if (cause != null) {
+                    return;
+                }
+                cause = failure;
+                running = new ArrayList<>(started);
+            }
+            for (Download download : running) {
+                download.cancel();
+            }
+            IOException cancelled = new IOException("Cancelled: another range failed");
+            for (CompletableFuture<Void> range : ranges) {
+                range.completeExceptionally(cancelled);
+            }
+        }
+
+        synchronized Throwable cause() {
+            return cause;
+        }
+    }
+
+    /**
+     * One FILE transfer: chunks are written at their offsets and recorded in the bitmap.
+     */
+    private final class Download {
+
+        private final TransferHeader header;
+        private final WindowedReceiver receiver;
+        private final ByteBuffer ack = ByteBuffer.allocate(Protocol.ACK_LENGTH);
+        private final CompletableFuture<Void> done;
+        private long lastData = System.currentTimeMillis();
+        private long lastAck;
+        private boolean cancelled;
+
+        Download(TransferHeader header, FileChannel file, ChunkBitmap bitmap, CompletableFuture<Void> done) {
+            this.header = header;
+            this.done = done;
+            this.receiver = new WindowedReceiver(header.transferId(), header.chunkCount(), header.chunkSize(),
+                    Protocol.WINDOW_SIZE, (index, payload, crc) -> {
+                        long position = header.chunkOffset(index);
+                        int written = payload.remaining();
+                        while (payload.hasRemaining()) {
+                            position += file.write(payload, position);
+                        }
+                        bitmap.mark(header.chunkOffset(index), written, crc);
+                    });
+        }
+
+        synchronized void onData(ByteBuffer buf) {
+            if (cancelled) {
+                return; // The file may already be closed
+            }
+            try {
+                if (!receiver.onData(buf)) {
+                    return;
+                }
+                lastData = System.currentTimeMillis();
+                sendAck();
+                if (receiver.isComplete()) {
+                    done.complete(null);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        synchronized void tick(long now) {
+            if (cancelled) {
+                return;
+            }
+            if (done.isDone()) {
+                if (now - lastData > LINGER) {
+                    downloads.remove(header.transferId(), this);
+                }
+            } else if (now - lastData > MAX_IDLE) {
+                fail(new IOException("Transfer timed out: " + header.name()));
+            } else if (now - lastData > ACK_IDLE && now - lastAck > ACK_IDLE) {
+                try {
+                    sendAck();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void sendAck() throws IOException {
+            receiver.writeAck(ack);
+            send(ack);
+            lastAck = System.currentTimeMillis();
+        }
+
+        /**
+         * Stops writing; once this returns, no chunk of this transfer is being written.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            downloads.remove(header.transferId(), this);
+        }
+
+        private void fail(IOException e) {
+            cancel();
+            done.completeExceptionally(e);
+        }
+    }
+}
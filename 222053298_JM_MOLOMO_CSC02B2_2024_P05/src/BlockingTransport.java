@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Fallback transport on a blocking DatagramSocket with its own receive thread.
+ * Like ChannelTransport it sets the don't-fragment bit where supported.
+ */
+public class BlockingTransport implements Transport {
+
+    private static final Logger LOG = Logger.getLogger(BlockingTransport.class.getName());
+
+    private final DatagramSocket socket;
+
+    /**
+     * Binds a blocking socket.
+     *
+     * @param port The local port, or 0 for any free port.
+     */
+    public BlockingTransport(int port) throws IOException {
+        this.socket = new DatagramSocket(port);
+        if (socket.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+            socket.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+        }
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            ByteBuffer view = ByteBuffer.wrap(buffer);
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    socket.receive(packet);
+                    view.clear().limit(packet.getLength());
+                    receiver.onPacket(view, (InetSocketAddress) packet.getSocketAddress());
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        LOG.log(Level.WARNING, "Receive failed", e);
+                    }
+                } catch (RuntimeException e) {
+                    // One bad datagram must not stop this thread
+                    LOG.log(Level.WARNING, "Receiver failed on a datagram from " + packet.getSocketAddress(), e);
+                }
+            }
+        }, "udp-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void send(ByteBuffer packet, InetSocketAddress to) throws IOException {
+        int length = packet.remaining();
+        if (packet.hasArray()) {
+            socket.send(new DatagramPacket(packet.array(), packet.arrayOffset() + packet.position(), length, to));
+        } else {
+            byte[] copy = new byte[length];
+            packet.get(copy, 0, length);
+            socket.send(new DatagramPacket(copy, length, to));
+            return;
+        }
+        packet.position(packet.limit());
+    }
+
+    @Override
+    public int localPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable direct ByteBuffers of one size.
+ *
+ * Buffers are allocated on demand and kept for reuse when released, up to
+ * a maximum number of idle buffers, so the send and receive paths do not
+ * allocate per packet once they are warm.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Creates a pool.
+     *
+     * @param bufferSize The capacity of each buffer.
+     * @param maxIdle    The maximum number of released buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if none is idle.
+     *
+     * @return A buffer with position 0 and limit equal to its capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = idle.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        return buf.clear();
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param buf The buffer to return.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf.capacity() != bufferSize || !buf.isDirect()) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(buf);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Downloads one file from a multicast pass, repairing what it missed over unicast.
+ *
+ * Sends "CAST id chunkSize" and joins the announced group, then takes every
+ * chunk of the transfer that arrives, from the group or as a repair, checks
+ * its CRC32C and writes it in place, recording it in the same ChunkBitmap
+ * sidecar as a unicast download, so either kind can resume the other when
+ * the chunk sizes agree. Once the group goes quiet, or the last chunk has
+ * gone by, the leecher NACKs the chunks it is missing a few spans at a time
+ * and asks again for whatever a round did not bring back. A leecher that
+ * joined after the pass ended gets the whole file this way.
+ *
+ * Not available with -Dudp.psk: a secure server does not cast.
+ */
+public class CastDownloader {
+
+    private static final Logger LOG = Logger.getLogger(CastDownloader.class.getName());
+
+    // How long the group may stay silent, before and during the pass, before repairs start
+    private static final long FIRST_PACKET_WAIT = 2000;
+    private static final long QUIET = 250;
+
+    // NACK packets per repair round, and how long to wait for a round to come back
+    private static final int NACKS_PER_ROUND = 8;
+    private static final long ROUND_TIMEOUT = 200;
+
+    /** Milliseconds without any chunk after which the download is abandoned. */
+    private static final long MAX_IDLE = 20_000;
+
+    private final InetSocketAddress server;
+
+    /**
+     * Creates a downloader.
+     *
+     * @param server The server address.
+     */
+    public CastDownloader(InetSocketAddress server) {
+        this.server = server;
+    }
+
+    /**
+     * Downloads a file, or the part of it an earlier attempt did not finish.
+     *
+     * @param fileId    The id of the file.
+     * @param outputDir The directory to write it to.
+     * @return The downloaded file.
+     */
+    public File download(int fileId, File outputDir) throws IOException {
+        if (Handshake.enabled()) {
+            throw new IOException("Casts are not available with -Dudp.psk");
+        }
+        outputDir.mkdirs();
+        try (DatagramChannel unicast = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            unicast.bind(null);
+            int chunkSize = MtuProbe.chunkSize(server);
+            String reply = Downloads.request(unicast.socket(), server, "CAST " + fileId + " " + chunkSize);
+            String[] parts = reply.split(" ", 4);
+            TransferHeader header = parts.length == 4 && "CAST".equals(parts[0]) ? TransferHeader.parse(parts[3]) : null;
+            if (header == null) {
+                throw new IOException("Cast request failed: " + reply);
+            }
+            InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(parts[1]), Integer.parseInt(parts[2]));
+
+            File outputFile = new File(outputDir, header.name());
+            File sidecar = new File(outputDir, header.name() + ".part");
+            if (!outputFile.exists()) {
+                sidecar.delete(); // Progress without the partial file is worthless
+            }
+            try (ChunkBitmap bitmap = ChunkBitmap.open(sidecar, header.fileSize(), header.checksum(), header.chunkSize());
+                    DatagramChannel multicast = join(group)) {
+                OpenOption[] options = bitmap.isResumed()
+                        ? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE }
+                        : new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING };
+                try (FileChannel channel = FileChannel.open(outputFile.toPath(), options)) {
+                    receive(header, unicast, multicast, channel, bitmap);
+                }
+                if (bitmap.fileChecksum() != header.checksum()) {
+                    bitmap.delete(); // Start over next time
+                    throw new IOException("Checksum mismatch: " + header.name());
+                }
+                bitmap.delete();
+            }
+            return outputFile;
+        }
+    }
+
+    /**
+     * Joins the group on the interface that reaches the server.
+     */
+    private DatagramChannel join(InetSocketAddress group) throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            // Room for a burst while this thread is writing to disk
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            channel.bind(new InetSocketAddress(group.getPort()));
+            MembershipKey membership = channel.join(group.getAddress(), Multicast.interfaceFor(server));
+            LOG.fine(() -> "Joined " + membership.group() + " on " + membership.networkInterface().getName());
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes chunks from the group and from repairs until every block is on disk.
+     */
+    private void receive(TransferHeader header, DatagramChannel unicast, DatagramChannel multicast,
+            FileChannel channel, ChunkBitmap bitmap) throws IOException {
+        Receiver receiver = new Receiver(header, channel, bitmap);
+        ByteBuffer packet = ByteBuffer.allocateDirect(Transport.MAX_DATAGRAM);
+        ByteBuffer nack = ByteBuffer.allocate(Protocol.ACK_LENGTH);
+        unicast.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+        unicast.configureBlocking(false);
+        multicast.configureBlocking(false);
+
+        try (Selector selector = Selector.open()) {
+            unicast.register(selector, SelectionKey.OP_READ);
+            multicast.register(selector, SelectionKey.OP_READ);
+            long now = System.currentTimeMillis();
+            long lastCast = now + FIRST_PACKET_WAIT - QUIET;
+            long lastChunk = now;
+            long roundEnd = 0;
+            int repairsDue = 0;
+            while (!bitmap.isComplete()) {
+                selector.select(50);
+                selector.selectedKeys().clear();
+                while (multicast.receive(packet.clear()) != null) {
+                    if (receiver.accept(packet.flip())) {
+                        lastCast = lastChunk = System.currentTimeMillis();
+                    }
+                }
+                while (unicast.receive(packet.clear()) != null) {
+                    if (receiver.accept(packet.flip())) {
+                        lastChunk = System.currentTimeMillis();
+                        repairsDue--;
+                    }
+                }
+
+                now = System.currentTimeMillis();
+                if (now - lastChunk > MAX_IDLE) {
+                    throw new IOException("Transfer timed out: " + header.name());
+                }
+                boolean castOver = receiver.seenLast() || now - lastCast > QUIET;
+                if (castOver && (repairsDue <= 0 || now >= roundEnd)) {
+                    repairsDue = receiver.sendNacks(unicast, server, nack);
+                    roundEnd = now + ROUND_TIMEOUT;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks and writes the chunks of one transfer and picks the chunks to NACK.
+     */
+    private static final class Receiver {
+
+        private final TransferHeader header;
+        private final FileChannel channel;
+        private final ChunkBitmap bitmap;
+        private final CRC32C crc = new CRC32C();
+        private boolean seenLast;
+        private int cursor;
+
+        Receiver(TransferHeader header, FileChannel channel, ChunkBitmap bitmap) {
+            this.header = header;
+            this.channel = channel;
+            this.bitmap = bitmap;
+        }
+
+        /**
+         * @return true if the packet was a new, intact chunk of this transfer.
+         */
+        boolean accept(ByteBuffer buf) throws IOException {
+            if (buf.limit() < Protocol.DATA_HEADER || Protocol.type(buf) != Protocol.TYPE_DATA
+                    || Protocol.transferId(buf) != header.transferId()) {
+                return false; // Another cast on the same group, or a stray reply
+            }
+            int seq = Protocol.seq(buf);
+            if (seq < 0 || seq >= header.chunkCount()) {
+                return false;
+            }
+            seenLast |= seq == header.chunkCount() - 1;
+            long position = header.chunkOffset(seq);
+            int length = buf.limit() - Protocol.DATA_HEADER;
+            if (bitmap.has(seq) || length != Math.min(header.chunkSize(), header.fileSize() - position)) {
+                return false;
+            }
+            crc.reset();
+            crc.update(buf.position(Protocol.DATA_HEADER));
+            if (crc.getValue() != Protocol.crc(buf)) {
+                return false; // Corrupted; NACKed like a lost one
+            }
+            buf.position(Protocol.DATA_HEADER);
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+            bitmap.mark(header.chunkOffset(seq), length, crc.getValue());
+            return true;
+        }
+
+        boolean seenLast() {
+            return seenLast;
+        }
+
+        /**
+         * NACKs the next missing spans after the last round's, wrapping
+         * around, so repeated rounds walk every hole.
+         *
+         * @return The number of chunks asked for.
+         */
+        int sendNacks(DatagramChannel unicast, InetSocketAddress server, ByteBuffer nack) throws IOException {
+            int chunks = header.chunkCount();
+            int asked = 0;
+            for (int nacks = 0, scanned = 0; nacks < NACKS_PER_ROUND && scanned < chunks; scanned++) {
+                int first = cursor;
+                cursor = (cursor + 1) % chunks;
+                if (bitmap.has(first)) {
+                    continue;
+                }
+                long missing = 0;
+                asked++;
+                for (int i = 0; i < Long.SIZE && first + 1 + i < chunks; i++) {
+                    if (!bitmap.has(first + 1 + i)) {
+                        missing |= 1L << i;
+                        asked++;
+                    }
+                }
+                Protocol.putNack(nack, header.transferId(), first, missing);
+                unicast.send(nack, server);
+                int span = Math.min(Long.SIZE, chunks - first - 1);
+                cursor = (first + 1 + span) % chunks;
+                scanned += span;
+                nacks++;
+            }
+            return asked;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * One multicast transfer: a file streamed once to the group for every
+ * leecher that joined it, with lost chunks repaired over unicast.
+ *
+ * The first CAST request for a file creates the session and later ones join
+ * it until the pass ends, so two hundred leechers cost the server one copy
+ * of the file. The pass starts -Dudp.castDelay milliseconds (500 by default)
+ * after the first join, so leechers that ask together all catch it, and is
+ * paced at -Dudp.castRate bytes per second (32 MiB by default) and the
+ * server-wide cap: there are no ACKs, so nothing else slows it down.
+ * A leecher that missed chunks, or joined late, sends NACKs for them and
+ * gets them back by unicast from the server's own socket; the session keeps
+ * answering until no NACK has come for -Dudp.castLinger milliseconds, but
+ * never longer than MAX_LINGER after the pass. Chunks go through the
+ * ChunkCache, so repairs of the same chunk for many leechers read the file
+ * once.
+ *
+ * Only addresses that sent CAST for this session get repairs, each at most
+ * MAX_REPAIRS chunks per ROUND, and repairs share the pass's pacer, so a
+ * forged NACK cannot turn the server into an amplifier or keep it lingering.
+ */
+public class CastSession implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(CastSession.class.getName());
+
+    private static final long START_DELAY = Long.getLong("udp.castDelay", 500);
+    private static final long RATE = Long.getLong("udp.castRate", 32L << 20);
+    private static final long LINGER = Long.getLong("udp.castLinger", 10_000);
+
+    // However many NACKs arrive, the session ends this long after the pass
+    private static final long MAX_LINGER = 6 * LINGER;
+
+    // Chunks one leecher may have repaired per round: one CastDownloader round of NACKs
+    private static final long ROUND = 200;
+    private static final int MAX_REPAIRS = 8 * (Long.SIZE + 1);
+
+    /** Router hops a cast may cross, set with -Dudp.castTtl; 1 keeps it on the local network. */
+    private static final int TTL = Integer.getInteger("udp.castTtl", 1);
+
+    private final FileServer server;
+    private final CatalogEntry entry;
+    private final File file;
+    private final ChunkSource source;
+    private final TransferHeader header;
+    private final NetworkInterface nif;
+    private final BufferPool pool;
+    private final AtomicInteger repairs = new AtomicInteger();
+    private final Pacer pacer;
+    private final Map<InetSocketAddress, Member> members = new ConcurrentHashMap<>();
+    private volatile WindowedSender.ChunkReader reader;
+    private volatile long lastRepair;
+
+    /**
+     * Creates a cast of a whole file and opens the file, so the announced
+     * size is that of the bytes the cast will send, whatever the catalog
+     * recorded when it was loaded.
+     *
+     * @param server     The server that owns the unicast transport.
+     * @param transferId The transfer id stamped on each packet.
+     * @param entry      The catalog entry of the file; its checksum is computed if not yet known.
+     * @param file       The file to send.
+     * @param chunkSize  The payload size of one DATA packet.
+     * @param nif        The interface to send to the group on.
+     */
+    public CastSession(FileServer server, int transferId, CatalogEntry entry, File file, int chunkSize,
+            NetworkInterface nif) throws IOException {
+        this.server = server;
+        this.entry = server.catalog().withChecksum(entry);
+        this.file = file;
+        this.source = server.files().open(file);
+        long size = source.size();
+        this.header = new TransferHeader(transferId, 0, size, size, this.entry.checksum(), chunkSize, entry.name());
+        this.nif = nif;
+        this.pool = server.packetPool(chunkSize);
+        this.pacer = server.newPacer(RATE);
+    }
+
+    /**
+     * A leecher that joined, and the repairs it has had this round.
+     */
+    private static final class Member {
+        long roundStart;
+        int repaired;
+
+        /**
+         * @return true if one more chunk fits this round's allowance, which it then uses.
+         */
+        synchronized boolean allow(long now) {
+            if (now - roundStart >= ROUND) {
+                roundStart = now;
+                repaired = 0;
+            }
+            return repaired++ < MAX_REPAIRS;
+        }
+    }
+
+    /**
+     * Lets a leecher that sent CAST for this session ask for repairs.
+     *
+     * @param peer The leecher's address.
+     */
+    public void join(InetSocketAddress peer) {
+        members.computeIfAbsent(peer, address -> new Member());
+    }
+
+    public TransferHeader header() {
+        return header;
+    }
+
+    public CatalogEntry entry() {
+        return entry;
+    }
+
+    /**
+     * @return The reply to a CAST request: "CAST group port " followed by the transfer header.
+     */
+    public String announcement() {
+        return "CAST " + Multicast.GROUP.getAddress().getHostAddress() + " " + Multicast.GROUP.getPort() + " "
+                + header.format();
+    }
+
+    @Override
+    public void run() {
+        try (ChunkSource source = this.source;
+                DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, TTL);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            if (channel.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+                channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+            }
+            reader = server.cache().wrap((index, dst) -> {
+                long remaining = header.length() - (long) index * header.chunkSize();
+                dst.limit(dst.position() + (int) Math.min(header.chunkSize(), remaining));
+                return source.read(header.chunkOffset(index), dst);
+            }, entry, header, false);
+
+            Thread.sleep(START_DELAY);
+            long started = System.nanoTime();
+            stream(channel);
+            server.castStreamed(this);
+            long elapsed = System.nanoTime() - started;
+            LOG.fine(() -> "Cast: " + file.getName() + " to " + Multicast.GROUP + ", " + header.length() + " bytes in "
+                    + elapsed / 1_000_000 + " ms");
+
+            long streamedAt = System.currentTimeMillis();
+            lastRepair = streamedAt;
+            long now;
+            while ((now = System.currentTimeMillis()) - lastRepair < LINGER && now - streamedAt < MAX_LINGER) {
+                Thread.sleep(Math.min(LINGER - (now - lastRepair), MAX_LINGER - (now - streamedAt)));
+            }
+            server.metrics().transferEnded(header.length(), elapsed, repairs.get(), true);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cast of " + file.getName() + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reader = null;
+            server.endCast(this);
+        }
+    }
+
+    /**
+     * Sends every chunk to the group once, at the cast rate.
+     */
+    private void stream(DatagramChannel channel) throws IOException, InterruptedException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer packet = pool.acquire();
+        try {
+            for (int seq = 0; seq < header.chunkCount(); seq++) {
+                fill(reader, packet, seq, crc);
+                pace(packet.remaining());
+                server.metrics().sent(packet.remaining());
+                channel.send(packet, Multicast.GROUP);
+            }
+        } finally {
+            pool.release(packet);
+        }
+    }
+
+    /**
+     * Waits until the pacer lets a packet of this size go.
+     */
+    private void pace(int bytes) throws InterruptedException {
+        long wait;
+        while ((wait = pacer.tryAcquire(bytes)) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Unicasts the chunks a leecher reported missing. Safe to call from any
+     * worker thread; NACKs before the pass starts, after the session ends,
+     * from addresses that never joined or beyond this round's allowance are
+     * ignored, and a real leecher sends them again.
+     *
+     * @param peer    The leecher's address.
+     * @param first   The first missing sequence number.
+     * @param missing Bits for the sequences after first that are missing too.
+     */
+    public void repair(InetSocketAddress peer, int first, long missing) throws IOException, InterruptedException {
+        WindowedSender.ChunkReader current = reader;
+        Member member = members.get(peer);
+        if (current == null || member == null) {
+            return;
+        }
+        lastRepair = System.currentTimeMillis();
+        CRC32C crc = new CRC32C();
+        ByteBuffer packet = pool.acquire();
+        try {
+            for (int i = -1; i < Long.SIZE; i++) {
+                int seq = first + 1 + i;
+                if (i >= 0 && (missing & (1L << i)) == 0 || seq < 0 || seq >= header.chunkCount()) {
+                    continue;
+                }
+                if (!member.allow(System.currentTimeMillis())) {
+                    return;
+                }
+                fill(current, packet, seq, crc);
+                pace(packet.remaining());
+                server.send(packet, peer);
+                repairs.incrementAndGet();
+            }
+        } finally {
+            pool.release(packet);
+        }
+    }
+
+    /**
+     * Reads one chunk into a packet and writes its DATA header, ready to send.
+     */
+    private void fill(WindowedSender.ChunkReader source, ByteBuffer packet, int seq, CRC32C crc) throws IOException {
+        packet.clear().position(Protocol.DATA_HEADER).limit(Protocol.DATA_HEADER + header.chunkSize());
+        source.read(seq, packet);
+        crc.reset();
+        crc.update(packet.flip().position(Protocol.DATA_HEADER));
+        Protocol.putDataHeader(packet, Protocol.TYPE_DATA, header.transferId(), seq, crc.getValue());
+        packet.position(0);
+    }
+}
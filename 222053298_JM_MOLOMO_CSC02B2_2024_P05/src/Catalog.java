@@ -0,0 +1,268 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * In-memory index of the files listed in data/sender/List.txt.
+ *
+ * List.txt is read once; after that every lookup is an exact match on the
+ * numeric id in an open-addressing int hash table and never touches disk.
+ * The index is copy-on-write: readers use the current snapshot without
+ * locking, writers publish a new one.
+ */
+public class Catalog {
+
+    /**
+     * Immutable snapshot: an id-keyed hash table plus the entries in List.txt order.
+     */
+    private static final class Index {
+        final int[] keys;
+        final CatalogEntry[] values;
+        final List<CatalogEntry> ordered;
+        volatile ListPages pages;
+
+        Index(int capacity, List<CatalogEntry> ordered) {
+            this.keys = new int[capacity];
+            this.values = new CatalogEntry[capacity];
+            this.ordered = ordered;
+        }
+
+        CatalogEntry get(int id) {
+            int mask = keys.length - 1;
+            for (int i = slot(id, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(CatalogEntry entry) {
+            int mask = keys.length - 1;
+            int i = slot(entry.id(), mask);
+            while (values[i] != null && keys[i] != entry.id()) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = entry.id();
+            values[i] = entry;
+        }
+
+        private static int slot(int id, int mask) {
+            int h = id * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+
+    private final File directory;
+    private final File listFile;
+    private volatile Index index = build(List.of());
+
+    // Guarded by this: the highest id handed out by reserveIds
+    private int reserved;
+
+    /**
+     * Creates a catalog for a sender directory. Call load() to read List.txt.
+     *
+     * @param directory The directory holding List.txt and the files it lists.
+     */
+    public Catalog(File directory) {
+        this.directory = directory;
+        this.listFile = new File(directory, "List.txt");
+    }
+
+    /**
+     * Reads List.txt into the index. Lines that do not start with a numeric id are skipped.
+     */
+    public synchronized void load() throws IOException {
+        List<CatalogEntry> entries = new ArrayList<>();
+        if (listFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(listFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    CatalogEntry entry = parse(line);
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        index = build(entries);
+    }
+
+    /**
+     * Looks up a file by id.
+     *
+     * @param id The file id.
+     * @return The entry, or null if no file has that id.
+     */
+    public CatalogEntry get(int id) {
+        return index.get(id);
+    }
+
+    /**
+     * @return Every entry in List.txt order.
+     */
+    public List<CatalogEntry> entries() {
+        return index.ordered;
+    }
+
+    /**
+     * Returns the LIST pages for the current snapshot, encoding them on first use.
+     *
+     * @return The pages.
+     */
+    public ListPages pages() {
+        Index current = index;
+        ListPages pages = current.pages;
+        if (pages == null) {
+            pages = ListPages.build(current.ordered, ListPages.MAX_PAGE);
+            current.pages = pages;
+        }
+        return pages;
+    }
+
+    public int size() {
+        return index.ordered.size();
+    }
+
+    /**
+     * @return The directory holding List.txt and the files it lists.
+     */
+    public File directory() {
+        return directory;
+    }
+
+    /**
+     * Reserves a run of consecutive ids above every id in use or already
+     * reserved, so concurrent ingests never hand out the same id twice.
+     *
+     * @param count The number of ids wanted.
+     * @return The first id of the run.
+     */
+    public synchronized int reserveIds(int count) {
+        int max = reserved;
+        for (CatalogEntry entry : index.ordered) {
+            max = Math.max(max, entry.id());
+        }
+        reserved = max + count;
+        return max + 1;
+    }
+
+    /**
+     * @param entry A catalog entry.
+     * @return The file the entry refers to.
+     */
+    public File file(CatalogEntry entry) {
+        return new File(directory, entry.name());
+    }
+
+    /**
+     * Appends an entry to List.txt and publishes it in the index.
+     * A later entry with the same id replaces the earlier one.
+     *
+     * @param id   The file id.
+     * @param name The file name inside the sender directory.
+     * @return The new entry.
+     */
+    public CatalogEntry add(int id, String name) throws IOException {
+        CatalogEntry entry = new CatalogEntry(id, name, new File(directory, name).length(), CatalogEntry.UNKNOWN);
+        add(List.of(entry));
+        return entry;
+    }
+
+    /**
+     * Appends entries to List.txt in one write and publishes them in one new
+     * snapshot, so readers see all of them or none. Entries with a known
+     * checksum keep it, so the file is not read again to compute it.
+     *
+     * @param entries The entries, in the order to append them.
+     */
+    public synchronized void add(List<CatalogEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (CatalogEntry entry : entries) {
+            lines.append(entry.line()).append('\n');
+        }
+        directory.mkdirs();
+        Files.write(listFile.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        publish(entries);
+    }
+
+    /**
+     * Returns the entry with its checksum filled in, computing and caching it on first use.
+     *
+     * @param entry A catalog entry.
+     * @return The entry with a known checksum.
+     */
+    public CatalogEntry withChecksum(CatalogEntry entry) throws IOException {
+        if (entry.checksum() != CatalogEntry.UNKNOWN) {
+            return entry;
+        }
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file(entry).toPath())) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        CatalogEntry updated = new CatalogEntry(entry.id(), entry.name(), entry.size(), crc.getValue());
+        synchronized (this) {
+            if (index.get(entry.id()) == entry) {
+                publish(List.of(updated));
+            }
+        }
+        return updated;
+    }
+
+    private void publish(List<CatalogEntry> added) {
+        List<CatalogEntry> entries = new ArrayList<>(index.ordered);
+        entries.addAll(added);
+        index = build(entries); // Later duplicates replace earlier ones
+    }
+
+    private CatalogEntry parse(String line) {
+        String[] parts = line.trim().split(" ", 2);
+        if (parts.length < 2) {
+            return null;
+        }
+        try {
+            int id = Integer.parseInt(parts[0]);
+            return new CatalogEntry(id, parts[1], new File(directory, parts[1]).length(), CatalogEntry.UNKNOWN);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Index build(List<CatalogEntry> entries) {
+        // Later duplicates win, matching the order List.txt was appended in
+        List<CatalogEntry> ordered = new ArrayList<>();
+        int capacity = Integer.highestOneBit(Math.max(16, entries.size() * 2) - 1) << 1;
+        Index scratch = new Index(capacity, null);
+        for (CatalogEntry entry : entries) {
+            scratch.put(entry);
+        }
+        for (CatalogEntry entry : entries) {
+            if (scratch.get(entry.id()) == entry) {
+                ordered.add(entry);
+            }
+        }
+        Index built = new Index(capacity, Collections.unmodifiableList(ordered));
+        for (CatalogEntry entry : ordered) {
+            built.put(entry);
+        }
+        return built;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * One file offered by the sender.
+ *
+ * @param id       The numeric file id leechers request.
+ * @param name     The file name inside data/sender.
+ * @param size     The file size in bytes.
+ * @param checksum CRC32C of the file contents, or UNKNOWN until first computed.
+ */
+public record CatalogEntry(int id, String name, long size, long checksum) {
+
+    public static final long UNKNOWN = -1;
+
+    /**
+     * @return The entry as a List.txt line, "id name".
+     */
+    public String line() {
+        return id + " " + name;
+    }
+}
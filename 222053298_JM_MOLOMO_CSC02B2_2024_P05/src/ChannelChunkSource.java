@@ -0,0 +1,40 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Serves a file with positional FileChannel reads straight into the
+ * caller's (direct) packet buffers. Each transfer opens its own channel.
+ */
+public class ChannelChunkSource implements ChunkSource {
+
+    private final FileChannel channel;
+    private final long size;
+
+    /**
+     * Opens the file for reading.
+     *
+     * @param file The file to serve.
+     */
+    public ChannelChunkSource(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer dst) throws IOException {
+        return Math.max(0, channel.read(dst, offset));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Non-blocking transport on a DatagramChannel registered with a SelectorLoop.
+ *
+ * Received datagrams land in a single reused direct buffer. Sends go straight
+ * to the channel; when the socket buffer is full the packet is copied into a
+ * pooled buffer of the smallest size class that holds it and flushed by the
+ * selector thread once the channel is writable. At most -Dudp.maxPending
+ * packets (4096 by default) wait; beyond that a packet is dropped and
+ * counted, and the sender's retransmission recovers it like any other loss.
+ * A queued packet the channel refuses with an error is dropped the same way.
+ * Datagrams are sent with the don't-fragment bit where the platform allows,
+ * so one larger than the path MTU fails instead of being split by IP.
+ */
+public class ChannelTransport implements Transport {
+
+    private static final Logger LOG = Logger.getLogger(ChannelTransport.class.getName());
+
+    private record Pending(ByteBuffer packet, InetSocketAddress to, BufferPool pool) {
+    }
+
+    private static final int MAX_PENDING = Integer.getInteger("udp.maxPending", 4096);
+
+    // Queued copies come in these capacities: an ACK or command, an Ethernet frame, a jumbo frame, anything
+    private static final int[] SIZE_CLASSES = { 64, 1536, 9216, MAX_DATAGRAM };
+
+    private final SelectorLoop loop;
+    private final DatagramChannel channel;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final BufferPool[] pendingPools = new BufferPool[SIZE_CLASSES.length];
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final LongAdder bufferFull = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private SelectionKey key;
+    private Receiver receiver;
+
+    /**
+     * Binds a non-blocking channel.
+     *
+     * @param loop The selector loop that will serve this channel.
+     * @param port The local port, or 0 for any free port.
+     */
+    public ChannelTransport(SelectorLoop loop, int port) throws IOException {
+        this.loop = loop;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            pendingPools[i] = new BufferPool(SIZE_CLASSES[i], 16);
+        }
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(port));
+        if (channel.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+            channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+        }
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        loop.execute(() -> {
+            try {
+                key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not register channel", e);
+            }
+        });
+    }
+
+    @Override
+    public void send(ByteBuffer packet, InetSocketAddress to) throws IOException {
+        if (pending.isEmpty() && channel.send(packet, to) > 0) {
+            return;
+        }
+        // Socket buffer full: keep a copy and let the selector thread flush it in order
+        bufferFull.increment();
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+            packet.position(packet.limit());
+            return;
+        }
+        BufferPool pool = poolFor(packet.remaining());
+        ByteBuffer copy = pool.acquire();
+        copy.put(packet).flip();
+        pending.offer(new Pending(copy, to, pool));
+        loop.execute(() -> {
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    /**
+     * Drains every datagram currently queued on the channel. Called on the selector thread.
+     */
+    void onReadable() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            try {
+                receiver.onPacket(receiveBuffer, (InetSocketAddress) from);
+            } catch (RuntimeException e) {
+                // One bad datagram must not stop the rest from being read
+                LOG.log(Level.WARNING, "Receiver failed on a datagram from " + from, e);
+            }
+        }
+    }
+
+    /**
+     * Flushes queued sends. Called on the selector thread. A packet the
+     * channel refuses outright, such as one too big for the path or to an
+     * unreachable peer, is dropped and counted so the packets behind it still go.
+     */
+    void onWritable() throws IOException {
+        Pending next;
+        while ((next = pending.peek()) != null) {
+            try {
+                if (channel.send(next.packet(), next.to()) == 0) {
+                    return;
+                }
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                dropped.increment();
+                LOG.log(Level.FINE, "Dropped a queued datagram to " + next.to(), e);
+            }
+            pending.poll();
+            pendingCount.decrementAndGet();
+            next.pool().release(next.packet());
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return The pool of the smallest size class that holds a packet of this size.
+     */
+    private BufferPool poolFor(int size) {
+        for (BufferPool pool : pendingPools) {
+            if (size <= pool.bufferSize()) {
+                return pool;
+            }
+        }
+        return pendingPools[pendingPools.length - 1];
+    }
+
+    @Override
+    public int localPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public long sendBufferFull() {
+        return bufferFull.sum();
+    }
+
+    @Override
+    public long sendDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent record of which blocks of a download have been written.
+ *
+ * Kept in a small sidecar file next to the partial download and memory
+ * mapped, so setting a bit costs no system call and survives the process
+ * being killed. The header ties the bitmap to the server's file metadata:
+ *
+ *   magic:int  fileSize:long  checksum:long  blockSize:int  bits...  crc32c:int per block
+ *
+ * The verified CRC32C of every written block is kept alongside its bit, so
+ * the whole-file checksum can be rebuilt with CrcCombiner at the end,
+ * without a second pass over the file, even across resumed attempts.
+ *
+ * A sidecar whose size, checksum or block size differ from the server's
+ * describes some other version of the file and is started afresh.
+ */
+public class ChunkBitmap implements AutoCloseable {
+
+    private static final int MAGIC = 0x55445043; // "UDPC"
+    private static final int HEADER = 4 + 8 + 8 + 4;
+
+    private final File sidecar;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final long fileSize;
+    private final int blockSize;
+    private final long blocks;
+    private final int crcArea;
+    private final long checksum;
+    private final boolean resumed;
+
+    private ChunkBitmap(File sidecar, FileChannel channel, MappedByteBuffer map, long fileSize, long checksum, int blockSize,
+            boolean resumed) {
+        this.sidecar = sidecar;
+        this.channel = channel;
+        this.map = map;
+        this.fileSize = fileSize;
+        this.blockSize = blockSize;
+        this.blocks = (fileSize + blockSize - 1) / blockSize;
+        this.crcArea = (int) (HEADER + (blocks + 7) / 8);
+        this.checksum = checksum;
+        this.resumed = resumed;
+    }
+
+    /**
+     * Opens the sidecar for a download, reusing it if it matches the server's metadata.
+     *
+     * @param sidecar   The sidecar file.
+     * @param fileSize  The file size reported by the server.
+     * @param checksum  The file checksum reported by the server.
+     * @param blockSize The number of file bytes covered by one bit.
+     * @return The bitmap.
+     */
+    public static ChunkBitmap open(File sidecar, long fileSize, long checksum, int blockSize) throws IOException {
+        long blocks = (fileSize + blockSize - 1) / blockSize;
+        int length = (int) (HEADER + (blocks + 7) / 8 + 4 * blocks);
+        FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean matches = channel.size() == length;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            matches = matches && map.getInt(0) == MAGIC && map.getLong(4) == fileSize
+                    && map.getLong(12) == checksum && map.getInt(20) == blockSize;
+            if (!matches) {
+                for (int i = HEADER; i < length; i++) {
+                    map.put(i, (byte) 0);
+                }
+                map.putInt(0, MAGIC).putLong(4, fileSize).putLong(12, checksum).putInt(20, blockSize);
+            }
+            return new ChunkBitmap(sidecar, channel, map, fileSize, checksum, blockSize, matches);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the block size an earlier attempt recorded, so a resumed download
+     * can ask for the same chunk size and keep its progress.
+     *
+     * @param sidecar The sidecar file.
+     * @return The recorded block size, or -1 if there is no usable sidecar.
+     */
+    public static int blockSizeOf(File sidecar) {
+        if (sidecar.length() < HEADER) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete
+            }
+            return header.getInt(0) == MAGIC && !header.hasRemaining() ? header.getInt(20) : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if an existing sidecar for the same file version was found.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public synchronized boolean has(long block) {
+        return (map.get(HEADER + (int) (block >>> 3)) & (1 << (block & 7))) != 0;
+    }
+
+    /**
+     * Records that one block is on disk.
+     *
+     * @param offset The file offset of the block; must be a block boundary.
+     * @param length The block length; blockSize, or less for the last block.
+     * @param crc    The verified CRC32C of the block.
+     */
+    public synchronized void mark(long offset, int length, long crc) {
+        long block = offset / blockSize;
+        if (offset % blockSize != 0 || block >= blocks || length != Math.min(blockSize, fileSize - offset)) {
+            throw new IllegalArgumentException("Not a block: " + offset + "+" + length);
+        }
+        map.putInt(crcArea + 4 * (int) block, (int) crc);
+        int index = HEADER + (int) (block >>> 3);
+        map.put(index, (byte) (map.get(index) | (1 << (block & 7))));
+    }
+
+    /**
+     * Rebuilds the CRC32C of the whole file from the block CRCs.
+     *
+     * @return The file checksum; only meaningful once every block is marked.
+     */
+    public synchronized long fileChecksum() {
+        CrcCombiner combiner = new CrcCombiner(blockSize);
+        long crc = 0;
+        for (long block = 0; block < blocks; block++) {
+            long blockCrc = map.getInt(crcArea + 4 * (int) block) & 0xFFFFFFFFL;
+            long length = Math.min(blockSize, fileSize - block * blockSize);
+            crc = length == blockSize ? combiner.append(crc, blockCrc) : CrcCombiner.combine(crc, blockCrc, length);
+        }
+        return crc;
+    }
+
+    /**
+     * @return The server's checksum this bitmap was opened for.
+     */
+    public long expectedChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return The byte ranges still missing, as {offset, length} pairs in file order.
+     */
+    public synchronized List<long[]> missingRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        long block = 0;
+        while (block < blocks) {
+            if (has(block)) {
+                block++;
+                continue;
+            }
+            long start = block;
+            while (block < blocks && !has(block)) {
+                block++;
+            }
+            long offset = start * blockSize;
+            ranges.add(new long[] { offset, Math.min(fileSize, block * blockSize) - offset });
+        }
+        return ranges;
+    }
+
+    public boolean isComplete() {
+        return missingRanges().isEmpty();
+    }
+
+    /**
+     * @return The number of file bytes covered by one bit.
+     */
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Removes the sidecar once the download is complete.
+     */
+    public void delete() throws IOException {
+        close();
+        sidecar.delete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            map.force();
+            channel.close();
+        }
+    }
+}
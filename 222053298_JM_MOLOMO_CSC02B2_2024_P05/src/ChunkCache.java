@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off-heap cache of encoded file chunks shared by every transfer on a server.
+ *
+ * Chunks are keyed by (file id, file checksum, chunk size, encoding, chunk
+ * index), so concurrent and later transfers of a popular file read each
+ * chunk from disk, and compress it, only once, and a re-uploaded file,
+ * whose checksum differs, never sees stale data. Each entry holds the packet
+ * type followed by the payload as sent, in a direct buffer; the buffers'
+ * total capacity stays within a byte budget, set with -Dudp.cacheBytes (64 MiB by default, 0 to turn the
+ * cache off); the least recently used chunk is evicted first, and its
+ * buffer is reused when the new chunk has the same size.
+ */
+public class ChunkCache {
+
+    private record Key(int fileId, long checksum, int chunkSize, boolean deflate, long index) {
+    }
+
+    private final long budget;
+    private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long allocated;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache with the budget from the udp.cacheBytes system property.
+     */
+    public ChunkCache() {
+        this(Long.getLong("udp.cacheBytes", 64L << 20));
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param budget The most bytes of chunk buffers to hold, 0 to cache nothing.
+     */
+    public ChunkCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Wraps a transfer's chunk reader so its chunks go through the cache.
+     *
+     * @param reader  The reader to fill misses from.
+     * @param entry   The catalog entry being served; its id and checksum key the chunks.
+     * @param header  The transfer header, giving the range and chunk size.
+     * @param deflate Whether the reader compresses its chunks.
+     * @return The caching reader, or the reader itself if the cache is off or
+     *         the range does not start on a chunk boundary.
+     */
+    public WindowedSender.ChunkReader wrap(WindowedSender.ChunkReader reader, CatalogEntry entry,
+            TransferHeader header, boolean deflate) {
+        int chunkSize = header.chunkSize();
+        if (budget <= 0 || chunkSize + 1 > budget || header.offset() % chunkSize != 0) {
+            return reader;
+        }
+        long firstChunk = header.offset() / chunkSize;
+        long rangeEnd = header.offset() + header.length();
+        return (index, dst) -> {
+            // A chunk cut short by the end of the range is not the file's chunk
+            if (header.chunkOffset(index) + chunkSize > rangeEnd && rangeEnd < header.fileSize()) {
+                return reader.read(index, dst);
+            }
+            Key key = new Key(entry.id(), entry.checksum(), chunkSize, deflate, firstChunk + index);
+            int n = get(key, dst);
+            if (n >= 0) {
+                return n;
+            }
+            int start = dst.position();
+            n = reader.read(index, dst);
+            if (n > 0) {
+                put(key, dst.get(0), dst.duplicate().limit(start + n).position(start));
+            }
+            return n;
+        };
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The bytes of direct memory currently held by the cache.
+     */
+    public synchronized long allocated() {
+        return allocated;
+    }
+
+    /**
+     * Copies a cached chunk into a packet and sets its packet type.
+     *
+     * @param dst The packet, positioned at the payload.
+     * @return The number of payload bytes copied, or -1 on a miss.
+     */
+    private synchronized int get(Key key, ByteBuffer dst) {
+        ByteBuffer chunk = entries.get(key);
+        if (chunk == null) {
+            misses.increment();
+            return -1;
+        }
+        hits.increment();
+        int n = chunk.limit() - 1;
+        dst.put(0, chunk.get(0));
+        dst.put(dst.position(), chunk, 1, n);
+        dst.position(dst.position() + n);
+        return n;
+    }
+
+    private synchronized void put(Key key, byte type, ByteBuffer payload) {
+        if (entries.containsKey(key)) {
+            return; // Another transfer read the same chunk meanwhile
+        }
+        ByteBuffer chunk = allocate(key.chunkSize() + 1);
+        chunk.clear();
+        chunk.put(type).put(payload).flip();
+        entries.put(key, chunk);
+    }
+
+    /**
+     * Finds room for one chunk buffer, evicting the least recently used chunks
+     * until it fits the budget.
+     */
+    private ByteBuffer allocate(int capacity) {
+        Iterator<Map.Entry<Key, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (allocated + capacity > budget && eldest.hasNext()) {
+            ByteBuffer evicted = eldest.next().getValue();
+            eldest.remove();
+            evictions.increment();
+            if (evicted.capacity() == capacity) {
+                return evicted;
+            }
+            allocated -= evicted.capacity(); // Freed by the collector
+        }
+        allocated += capacity;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+}
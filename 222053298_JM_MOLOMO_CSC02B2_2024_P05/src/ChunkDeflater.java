@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses each chunk of a transfer on its own with raw Deflate.
+ *
+ * Wraps the reader of raw chunks: the chunk is read into a scratch buffer
+ * and deflated into the packet. A chunk that does not get smaller is copied
+ * as it is and left as TYPE_DATA, so incompressible files cost one copy and
+ * a failed deflate attempt, never a larger packet. Because no chunk depends
+ * on another, compressed chunks can still be retransmitted, fetched by
+ * parallel ranged streams and resumed. The level is set with
+ * -Dudp.deflateLevel (1, fastest, by default).
+ */
+public class ChunkDeflater implements WindowedSender.ChunkReader, AutoCloseable {
+
+    private static final int LEVEL = Integer.getInteger("udp.deflateLevel", Deflater.BEST_SPEED);
+
+    private final WindowedSender.ChunkReader raw;
+    private final ByteBuffer scratch;
+    private final Deflater deflater = new Deflater(LEVEL, true);
+
+    /**
+     * Creates a compressing reader.
+     *
+     * @param raw       The reader of uncompressed chunks.
+     * @param chunkSize The chunk size of the transfer.
+     */
+    public ChunkDeflater(WindowedSender.ChunkReader raw, int chunkSize) {
+        this.raw = raw;
+        this.scratch = ByteBuffer.allocate(chunkSize);
+    }
+
+    @Override
+    public int read(int index, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        scratch.clear().limit(dst.remaining());
+        int n = raw.read(index, scratch);
+        scratch.flip();
+
+        // Only worth it if the compressed chunk ends before the raw one would
+        int limit = dst.limit();
+        dst.limit(start + Math.max(0, n - 1));
+        deflater.reset();
+        deflater.setInput(scratch);
+        deflater.finish();
+        deflater.deflate(dst);
+        boolean smaller = deflater.finished();
+        dst.limit(limit);
+
+        if (smaller) {
+            dst.put(0, Protocol.TYPE_DATA_DEFLATE);
+            return dst.position() - start;
+        }
+        dst.position(start);
+        dst.put(scratch.rewind());
+        return n;
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+}
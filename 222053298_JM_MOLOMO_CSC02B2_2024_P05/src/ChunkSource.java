@@ -0,0 +1,23 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to the bytes of a file being served.
+ */
+public interface ChunkSource extends Closeable {
+
+    /**
+     * @return The file size in bytes.
+     */
+    long size();
+
+    /**
+     * Copies bytes starting at an offset into the destination buffer.
+     *
+     * @param offset The file offset to read from.
+     * @param dst    The destination; up to dst.remaining() bytes are copied and its position advanced.
+     * @return The number of bytes copied, 0 at end of file.
+     */
+    int read(long offset, ByteBuffer dst) throws IOException;
+}
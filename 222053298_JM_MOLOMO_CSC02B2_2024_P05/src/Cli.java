@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Headless entry point for servers and scripts without a display.
+ *
+ * Only the engine classes are referenced, so the JavaFX toolkit is never
+ * loaded and the server is ready as soon as its catalog is read.
+ *
+ *   java -cp bin Cli serve [port] [directory]
+ *   java -cp bin Cli list host port
+ *   java -cp bin Cli get host port id [streams] [directory]
+ *   java -cp bin Cli cast host port id [directory]
+ *   java -cp bin Cli ingest source [directory]
+ *
+ * Add -Dudp.psk=secret to both ends to authenticate and encrypt every
+ * datagram (see Handshake); a server started with it ignores anyone without it.
+ *
+ * Version: P05
+ * Author: JM MoLOMO
+ */
+public class Cli {
+
+    private static final int DEFAULT_PORT = 12345;
+
+    private Cli() {
+    }
+
+    /**
+     * Runs one command.
+     *
+     * @param args The command and its arguments.
+     */
+    public static void main(String[] args) {
+        int required = args.length == 0 ? 1 : switch (args[0]) {
+            case "list" -> 3;
+            case "ingest" -> 2;
+            case "get", "cast" -> 4;
+            default -> 1;
+        };
+        if (args.length < required) {
+            usage();
+            return;
+        }
+        try {
+            switch (args[0]) {
+                case "serve" -> serve(args);
+                case "list" -> list(args);
+                case "get" -> get(args);
+                case "cast" -> cast(args);
+                case "ingest" -> ingest(args);
+                default -> usage();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println(args[0] + " failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Serves a directory until the process is stopped.
+     */
+    private static void serve(String[] args) throws IOException {
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        File directory = new File(args.length > 2 ? args[2] : "data/sender");
+        FileServer server = FileServer.open(port, directory);
+        System.out.println("Serving " + server.catalog().size() + " files from " + directory + " on port " + port);
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            stopped.countDown();
+        }));
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints the server's files, one "id name" line each.
+     */
+    private static void list(String[] args) throws IOException {
+        try (FileClient client = new FileClient(server(args))) {
+            for (CatalogEntry entry : client.list()) {
+                System.out.println(entry.line());
+            }
+        }
+    }
+
+    /**
+     * Downloads one file, resuming an earlier partial download.
+     */
+    private static void get(String[] args) throws IOException {
+        int id = Integer.parseInt(args[3]);
+        int streams = args.length > 4 ? Integer.parseInt(args[4]) : ParallelDownloader.STREAMS;
+        File directory = new File(args.length > 5 ? args[5] : "data/leecher");
+        try (FileClient client = new FileClient(server(args))) {
+            File file = client.get(id, directory, streams);
+            System.out.println("Downloaded: " + file.getPath() + " (" + file.length() + " bytes)");
+        }
+    }
+
+    /**
+     * Downloads one file from a multicast pass, joining one already under way.
+     */
+    private static void cast(String[] args) throws IOException {
+        int id = Integer.parseInt(args[3]);
+        File directory = new File(args.length > 4 ? args[4] : "data/leecher");
+        try (FileClient client = new FileClient(server(args))) {
+            File file = client.cast(id, directory);
+            System.out.println("Downloaded: " + file.getPath() + " (" + file.length() + " bytes)");
+        }
+    }
+
+    /**
+     * Copies a file, or every file in a folder, into a sender directory and
+     * lists it. A running server picks the files up on its next start.
+     */
+    private static void ingest(String[] args) throws IOException {
+        File source = new File(args[1]);
+        Catalog catalog = new Catalog(new File(args.length > 2 ? args[2] : "data/sender"));
+        catalog.load();
+        Ingest ingest = new Ingest(catalog);
+        List<CatalogEntry> added = source.isDirectory()
+                ? ingest.directory(source)
+                : List.of(ingest.file(source, catalog.reserveIds(1)));
+        for (CatalogEntry entry : added) {
+            System.out.println(entry.line() + " (" + entry.size() + " bytes)");
+        }
+    }
+
+    private static InetSocketAddress server(String[] args) {
+        return new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+    }
+
+    private static void usage() {
+        System.err.println("usage: Cli serve [port] [directory]");
+        System.err.println("       Cli list host port");
+        System.err.println("       Cli get host port id [streams] [directory]");
+        System.err.println("       Cli cast host port id [directory]");
+        System.err.println("       Cli ingest source [directory]");
+    }
+}
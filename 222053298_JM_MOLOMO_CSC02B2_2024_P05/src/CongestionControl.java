@@ -0,0 +1,54 @@
+/**
+ * Decides how many DATA packets a transfer may have in flight, driven by
+ * the ACK and loss feedback of WindowedSender.
+ *
+ * Select an implementation with -Dudp.cc=aimd|fixed (default aimd).
+ */
+public interface CongestionControl {
+
+    /**
+     * @return The number of unacknowledged packets currently allowed.
+     */
+    int window();
+
+    /**
+     * Called when ACKs cover new packets.
+     *
+     * @param acked The number of packets newly acknowledged.
+     */
+    void onAck(int acked);
+
+    /**
+     * Called at most once per window when a loss is detected.
+     *
+     * @param timeout true if the loss was found by a retransmission timeout
+     *                rather than a hole in the selective ACKs.
+     */
+    void onLoss(boolean timeout);
+
+    /**
+     * Creates the controller selected by the udp.cc system property.
+     *
+     * @param maxWindow The sender's window size, the upper bound for any controller.
+     * @return A new controller for one transfer.
+     */
+    static CongestionControl create(int maxWindow) {
+        if ("fixed".equals(System.getProperty("udp.cc"))) {
+            return new CongestionControl() {
+                @Override
+                public int window() {
+                    return maxWindow;
+                }
+
+                @Override
+                public void onAck(int acked) {
+                }
+
+                @Override
+                public void onLoss(boolean timeout) {
+                }
+            };
+        }
+        return new AimdControl(maxWindow);
+    }
+}
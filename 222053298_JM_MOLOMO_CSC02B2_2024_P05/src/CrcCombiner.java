@@ -0,0 +1,94 @@
+/**
+ * Combines CRC32C values of adjacent byte ranges without touching the bytes.
+ *
+ * crc(A + B) = crc(A) * x^(8 * |B|) xor crc(B) over GF(2), where multiplying
+ * by x^(8 * |B|) is a fixed 32x32 bit matrix. An instance precomputes that
+ * matrix for one block length, so appending a block costs 32 xors; this is
+ * how the leecher rebuilds the whole-file digest from its per-block CRCs.
+ */
+public final class CrcCombiner {
+
+    // Reflected CRC32C (Castagnoli) polynomial, as used by java.util.zip.CRC32C
+    private static final int POLY = 0x82F63B78;
+
+    private final int[] operator;
+
+    /**
+     * Prepares a combiner for blocks of a fixed length.
+     *
+     * @param blockLength The length in bytes of every appended block.
+     */
+    public CrcCombiner(long blockLength) {
+        this.operator = zerosOperator(blockLength);
+    }
+
+    /**
+     * Appends a block of the configured length.
+     *
+     * @param crc      The CRC of the data so far.
+     * @param blockCrc The CRC of the block.
+     * @return The CRC of the data followed by the block.
+     */
+    public long append(long crc, long blockCrc) {
+        return (apply(operator, (int) crc) ^ blockCrc) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Combines the CRCs of two adjacent ranges.
+     *
+     * @param crc1    The CRC of the first range.
+     * @param crc2    The CRC of the second range.
+     * @param length2 The length of the second range in bytes.
+     * @return The CRC of both ranges together.
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        return (apply(zerosOperator(length2), (int) crc1) ^ crc2) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Builds the matrix that feeds length zero bytes through the CRC register.
+     */
+    private static int[] zerosOperator(long length) {
+        int[] op = new int[32];
+        op[0] = POLY; // one zero bit
+        for (int n = 1; n < 32; n++) {
+            op[n] = 1 << (n - 1);
+        }
+        op = compose(op, op); // two bits
+        op = compose(op, op); // four bits
+        op = compose(op, op); // one byte
+
+        int[] result = new int[32];
+        for (int n = 0; n < 32; n++) {
+            result[n] = 1 << n;
+        }
+        while (length != 0) {
+            if ((length & 1) != 0) {
+                result = compose(op, result);
+            }
+            length >>>= 1;
+            if (length != 0) {
+                op = compose(op, op);
+            }
+        }
+        return result;
+    }
+
+    private static int apply(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static int[] compose(int[] a, int[] b) {
+        int[] c = new int[32];
+        for (int n = 0; n < 32; n++) {
+            c[n] = apply(a, b[n]);
+        }
+        return c;
+    }
+}
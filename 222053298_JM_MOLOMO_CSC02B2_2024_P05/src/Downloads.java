@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Leecher-side helpers shared by the single-stream and parallel downloads.
+ */
+public final class Downloads {
+
+    /** How long to wait for a reply to a text request. */
+    static final int REPLY_TIMEOUT = 20000;
+
+    /** Consecutive one-second silences after which a transfer is abandoned. */
+    private static final int MAX_IDLE = 20;
+
+    private Downloads() {
+    }
+
+    /**
+     * Sends a text request and waits for the text reply, skipping any stray
+     * DATA packets left over from an earlier transfer on the same socket.
+     *
+     * @param socket  The leecher's socket.
+     * @param server  The server address.
+     * @param request The request text.
+     * @return The reply text.
+     */
+    public static String request(DatagramSocket socket, InetSocketAddress server, String request) throws IOException {
+        byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(bytes, bytes.length, server));
+
+        byte[] buffer = new byte[Transport.MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        long deadline = System.currentTimeMillis() + REPLY_TIMEOUT;
+        int previousTimeout = socket.getSoTimeout();
+        try {
+            while (true) {
+                int wait = (int) (deadline - System.currentTimeMillis());
+                if (wait <= 0) {
+                    throw new SocketTimeoutException("No reply to " + request);
+                }
+                socket.setSoTimeout(wait);
+                socket.receive(packet);
+                view.clear().limit(packet.getLength());
+                if (!Protocol.isPacket(view)) {
+                    return new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8);
+                }
+            }
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+
+    /**
+     * Asks the server for a file's size, checksum and name.
+     *
+     * @param socket The leecher's socket.
+     * @param server The server address.
+     * @param fileId The id of the file.
+     * @return The server's catalog entry for the file.
+     * @throws IOException if the server answered with an error.
+     */
+    public static CatalogEntry stat(DatagramSocket socket, InetSocketAddress server, int fileId) throws IOException {
+        String reply = request(socket, server, "STAT " + fileId);
+        String[] parts = reply.split(" ", 5);
+        if (!reply.startsWith("STAT ") || parts.length < 5) {
+            throw new IOException("Stat failed: " + reply);
+        }
+        return new CatalogEntry(fileId, parts[4], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+    }
+
+    /**
+     * Requests a FILE transfer and parses its header.
+     *
+     * @param socket  The leecher's socket.
+     * @param server  The server address.
+     * @param request The FILE request text.
+     * @return The transfer header.
+     * @throws IOException if the server answered with an error.
+     */
+    public static TransferHeader requestFile(DatagramSocket socket, InetSocketAddress server, String request) throws IOException {
+        String reply = request(socket, server, request);
+        TransferHeader header = TransferHeader.parse(reply);
+        if (header == null) {
+            throw new IOException("File request failed: " + reply);
+        }
+        return header;
+    }
+
+    /**
+     * Receives the DATA packets of a transfer, acknowledging each one, and
+     * hands chunks to the writer in sequence order. The packet, its buffer view
+     * and the ACK packet are reused for every chunk.
+     *
+     * @param socket The leecher's socket.
+     * @param server The server address ACKs go to.
+     * @param header The transfer header.
+     * @param writer Destination for the chunks.
+     */
+    public static void receive(DatagramSocket socket, InetSocketAddress server, TransferHeader header,
+            WindowedReceiver.ChunkWriter writer) throws IOException {
+        WindowedReceiver receiver = new WindowedReceiver(header.transferId(), header.chunkCount(),
+                header.chunkSize(), Protocol.WINDOW_SIZE, writer);
+        byte[] buffer = new byte[Protocol.DATA_HEADER + header.chunkSize()];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        DatagramPacket filePacket = new DatagramPacket(buffer, buffer.length);
+        byte[] ackBuffer = new byte[Protocol.ACK_LENGTH];
+        ByteBuffer ack = ByteBuffer.wrap(ackBuffer);
+        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length, server);
+        int previousTimeout = socket.getSoTimeout();
+        int idle = 0;
+        // Room for a full window, so a burst of large chunks is not dropped by the kernel
+        socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), Protocol.WINDOW_SIZE * buffer.length));
+
+        try {
+            socket.setSoTimeout(1000);
+            while (!receiver.isComplete()) {
+                try {
+                    socket.receive(filePacket);
+                    view.clear().limit(filePacket.getLength());
+                    if (!receiver.onData(view)) {
+                        continue;
+                    }
+                    idle = 0;
+                } catch (SocketTimeoutException timeout) {
+                    if (++idle > MAX_IDLE) {
+                        throw new IOException("Transfer timed out: " + header.name());
+                    }
+                }
+                sendAck(socket, ack, ackPacket, receiver);
+            }
+            sendAck(socket, ack, ackPacket, receiver);
+
+            // Linger briefly so a lost final ACK can still be answered
+            socket.setSoTimeout(200);
+            long lingerEnd = System.currentTimeMillis() + 1000;
+            try {
+                while (System.currentTimeMillis() < lingerEnd) {
+                    socket.receive(filePacket);
+                    view.clear().limit(filePacket.getLength());
+                    if (receiver.onData(view)) {
+                        sendAck(socket, ack, ackPacket, receiver);
+                    }
+                }
+            } catch (SocketTimeoutException done) {
+                // Sender has gone quiet
+            }
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+
+    private static void sendAck(DatagramSocket socket, ByteBuffer ack, DatagramPacket ackPacket,
+            WindowedReceiver receiver) throws IOException {
+        receiver.writeAck(ack);
+        ackPacket.setLength(ack.limit());
+        socket.send(ackPacket);
+    }
+}
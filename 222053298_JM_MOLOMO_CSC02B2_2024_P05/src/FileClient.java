@@ -0,0 +1,112 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Leecher engine: lists a server's files and downloads them.
+ *
+ * Has no JavaFX dependency, so the same code backs the leecher screen and
+ * the headless Cli. Text requests go through an AsyncFileClient and wait
+ * for its futures, so they may be made from several threads at once;
+ * parallel and multicast downloads open their own sockets.
+ */
+public class FileClient implements Closeable {
+
+    private final InetSocketAddress server;
+    private final AsyncFileClient async;
+
+    /**
+     * Creates a client for one server on an ephemeral local port.
+     *
+     * @param server The server address.
+     */
+    public FileClient(InetSocketAddress server) throws IOException {
+        this.server = server;
+        this.async = new AsyncFileClient(server);
+    }
+
+    public InetSocketAddress server() {
+        return server;
+    }
+
+    /**
+     * @return The non-blocking client this one waits on, for pipelined requests.
+     */
+    public AsyncFileClient async() {
+        return async;
+    }
+
+    /**
+     * Fetches the full file list.
+     * Each page starts with "LIST page pageCount total next"; next is -1 on the last page.
+     * Sizes and checksums are not part of the list and are left UNKNOWN.
+     *
+     * @return Every file the server offers, in catalog order.
+     */
+    public List<CatalogEntry> list() throws IOException {
+        return await(async.list());
+    }
+
+    /**
+     * Asks the server for a file's size, checksum and name.
+     *
+     * @param fileId The id of the file.
+     * @return The server's catalog entry.
+     */
+    public CatalogEntry stat(int fileId) throws IOException {
+        return await(async.stat(fileId));
+    }
+
+    /**
+     * Downloads a file, resuming an earlier partial download of it.
+     *
+     * @param fileId    The id of the file.
+     * @param outputDir The directory to write it to.
+     * @param streams   The number of concurrent streams; 1 for a single stream.
+     * @return The downloaded file.
+     */
+    public File get(int fileId, File outputDir, int streams) throws IOException {
+        return new ParallelDownloader(server, streams).download(fileId, outputDir);
+    }
+
+    /**
+     * Downloads a file from a multicast pass shared with other leechers,
+     * resuming an earlier partial download of it.
+     *
+     * @param fileId    The id of the file.
+     * @param outputDir The directory to write it to.
+     * @return The downloaded file.
+     */
+    public File cast(int fileId, File outputDir) throws IOException {
+        return new CastDownloader(server).download(fileId, outputDir);
+    }
+
+    @Override
+    public void close() {
+        async.close();
+    }
+
+    /**
+     * Waits for a future, rethrowing its failure as the IOException it stands for.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof TimeoutException) {
+                throw new SocketTimeoutException("Request timed out");
+            }
+            throw new IOException(cause);
+        }
+    }
+}
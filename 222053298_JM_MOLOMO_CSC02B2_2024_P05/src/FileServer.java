@@ -0,0 +1,519 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Session-based sender engine.
+ *
+ * The transport delivers every datagram to a single dispatcher callback. ACK
+ * packets are routed to their transfer session by (address, port, transfer id);
+ * LIST and FILE commands are handed to a virtual-thread-per-task executor, so
+ * many leechers can download at once without blocking each other.
+ * CAST requests join a multicast pass of the file (see CastSession), and
+ * NACK packets are routed to their cast by transfer id, since every
+ * leecher in the group shares it, and only answered for addresses that
+ * joined that cast.
+ *
+ * On a SecureTransport only leechers holding the pre-shared secret are
+ * heard at all. Casts are refused there: a group stream cannot be sealed
+ * for each leecher.
+ *
+ * Traffic, retransmits and request latencies are counted in ServerMetrics,
+ * which is registered over JMX and summarised in the log every
+ * -Dudp.metricsInterval seconds (60 by default, 0 to turn it off). Requests
+ * are logged at FINE, so they cost nothing unless that level is enabled.
+ */
+public class FileServer {
+
+    private static final Logger LOG = Logger.getLogger(FileServer.class.getName());
+
+    /** Seconds between metric snapshots in the log, 0 for none. */
+    private static final int METRICS_INTERVAL = Integer.getInteger("udp.metricsInterval", 60);
+
+    private final Transport transport;
+    private final Catalog catalog;
+    private final FileSources files = new FileSources();
+    private final ChunkCache cache = new ChunkCache();
+    private final Map<Integer, BufferPool> packetPools = new ConcurrentHashMap<>();
+    private final BufferPool ackPool = new BufferPool(Protocol.ACK_LENGTH, 4096);
+    private final Map<SessionKey, TransferSession> sessions = new ConcurrentHashMap<>();
+    private final Map<Integer, CastSession> casts = new ConcurrentHashMap<>();
+    /** Casts still streaming, by file id; guarded by itself. */
+    private final Map<Integer, CastSession> castsByFile = new HashMap<>();
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger nextTransferId = new AtomicInteger(1);
+    private final ServerMetrics metrics;
+    private ScheduledExecutorService snapshots;
+    private ObjectName mbeanName;
+
+    /** Server-wide cap in bytes per second over all transfers, or null if -Dudp.globalRate is unset. */
+    private final TokenBucket globalRate = rateLimit(Long.getLong("udp.globalRate", 0));
+
+    /** Per-transfer cap in bytes per second from -Dudp.rate, 0 for none. */
+    private final long transferRate = Long.getLong("udp.rate", 0);
+
+    /**
+     * Creates a server on an already bound transport.
+     *
+     * @param transport The transport to serve on.
+     * @param catalog   The catalog of files to offer.
+     */
+    public FileServer(Transport transport, Catalog catalog) {
+        this.transport = transport;
+        this.catalog = catalog;
+        this.metrics = new ServerMetrics(sessions::size, transport::sendBufferFull, transport::sendDropped, cache);
+    }
+
+    /**
+     * Serves a directory on a port, using the transport chosen with
+     * -Dudp.transport, sealed with -Dudp.psk if that is set.
+     *
+     * @param port      The UDP port to listen on.
+     * @param directory The directory holding the files and List.txt.
+     * @return The started server.
+     */
+    public static FileServer open(int port, File directory) throws IOException {
+        FileServer server = new FileServer(SecureTransport.ifConfigured(Transport.open(port)), new Catalog(directory));
+        server.start();
+        return server;
+    }
+
+    /**
+     * Loads the catalog and starts receiving requests.
+     */
+    public void start() throws IOException {
+        catalog.load();
+        transport.start(this::dispatch);
+        registerMetrics();
+    }
+
+    public Catalog catalog() {
+        return catalog;
+    }
+
+    /**
+     * @return The UDP port the server listens on.
+     */
+    public int port() {
+        return transport.localPort();
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The number of transfers currently in progress.
+     */
+    public int activeSessions() {
+        return sessions.size();
+    }
+
+    FileSources files() {
+        return files;
+    }
+
+    ChunkCache cache() {
+        return cache;
+    }
+
+    /**
+     * @return A pacer for a new transfer, holding its own cap and the server-wide one.
+     */
+    Pacer newPacer() {
+        return newPacer(transferRate);
+    }
+
+    /**
+     * @param bytesPerSecond The transfer's own cap, 0 for none.
+     * @return A pacer holding that cap and the server-wide one.
+     */
+    Pacer newPacer(long bytesPerSecond) {
+        TokenBucket own = rateLimit(bytesPerSecond);
+        return own == null && globalRate == null ? Pacer.NONE : new Pacer(own, globalRate);
+    }
+
+    private static TokenBucket rateLimit(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+
+    /**
+     * @param chunkSize The payload size of the transfer.
+     * @return The pool of DATA packet buffers for that chunk size.
+     */
+    BufferPool packetPool(int chunkSize) {
+        return packetPools.computeIfAbsent(chunkSize, size -> new BufferPool(Protocol.DATA_HEADER + size, 4096));
+    }
+
+    /**
+     * @return The pool holding copies of ACK packets on their way to a session.
+     */
+    BufferPool ackPool() {
+        return ackPool;
+    }
+
+    /**
+     * Routes one datagram to its session or to a command handler.
+     * Runs on the transport's receive thread, so it must not block.
+     *
+     * @param packet The received datagram.
+     * @param from   The leecher's address.
+     */
+    private void dispatch(ByteBuffer packet, InetSocketAddress from) {
+        long receivedAt = System.nanoTime();
+        metrics.received(packet.limit());
+        if (Protocol.isPacket(packet)) {
+            // ACKs and NACKs have one fixed length; anything longer would overflow the pooled copy
+            if (packet.limit() == Protocol.ACK_LENGTH && Protocol.type(packet) == Protocol.TYPE_ACK) {
+                TransferSession session = sessions.get(new SessionKey(from, Protocol.transferId(packet)));
+                if (session != null) {
+                    ByteBuffer copy = ackPool.acquire();
+                    copy.put(packet).flip();
+                    session.offer(copy);
+                } else {
+                    metrics.unroutedAck();
+                }
+            } else if (packet.limit() == Protocol.ACK_LENGTH && Protocol.type(packet) == Protocol.TYPE_NACK) {
+                CastSession cast = casts.get(Protocol.transferId(packet));
+                if (cast != null) {
+                    int first = Protocol.seq(packet);
+                    long missing = Protocol.sack(packet);
+                    workers.execute(() -> repair(cast, from, first, missing));
+                } else {
+                    metrics.unroutedAck();
+                }
+            }
+            return;
+        }
+
+        String receivedMessage = StandardCharsets.UTF_8.decode(packet).toString();
+        LOG.fine(() -> "Message received from " + from + ": " + receivedMessage);
+        workers.execute(() -> handleCommand(receivedMessage, from, receivedAt));
+    }
+
+    /**
+     * Handles a LIST, STAT, FILE, CAST or PROBE command. All are answered from the in-memory catalog.
+     *
+     *   LIST [page]                          one page of the file list
+     *   STAT id                              "STAT id size checksum name"
+     *   FILE id [offset length [chunkSize [deflate]]]
+     *                                        the whole file, or only the given byte range,
+     *                                        optionally with each chunk compressed; a lone
+     *                                        offset or an empty range is an error
+     *   CAST id [chunkSize]                  "CAST group port " and the header of a multicast pass
+     *   PROBE size                           a "PROBE size" reply padded to exactly size bytes
+     *
+     * Any command but PROBE may start with "#tag ", which is put in front
+     * of its reply, including the FILE header; a probe reply must keep its
+     * exact size, so a tagged probe is answered untagged.
+     *
+     * @param message    The command text.
+     * @param from       The leecher's address.
+     * @param receivedAt System.nanoTime() when the command arrived.
+     */
+    private void handleCommand(String message, InetSocketAddress from, long receivedAt) {
+        // A "#tag " prefix is echoed on the reply, so a client can match replies to pipelined requests
+        String tag = "";
+        if (message.startsWith("#") && message.indexOf(' ') > 0 && message.indexOf(' ') < Protocol.MAX_TAG) {
+            tag = message.substring(0, message.indexOf(' ') + 1);
+            message = message.substring(tag.length());
+        }
+        String receivearray[] = message.split(" ");
+        try {
+            // Handle LIST command: "LIST [page]", one datagram per page
+            if ("LIST".equals(receivearray[0])) {
+                int page = receivearray.length > 1 ? parseInt(receivearray[1], -1) : 0;
+                byte[] reply = catalog.pages().page(page);
+                if (reply == null) {
+                    send(tag + "ERR no such page " + page, from);
+                } else {
+                    send(tagged(tag, reply), from);
+                }
+                metrics.listServed(System.nanoTime() - receivedAt);
+
+            // Handle STAT request
+            } else if ("STAT".equals(receivearray[0]) && receivearray.length > 1) {
+                CatalogEntry entry = lookup(receivearray[1]);
+                if (entry == null) {
+                    send(tag + "ERR unknown file " + receivearray[1], from);
+                } else {
+                    entry = catalog.withChecksum(entry);
+                    send(tag + "STAT " + entry.id() + " " + entry.size() + " " + entry.checksum() + " " + entry.name(), from);
+                }
+                metrics.statServed(System.nanoTime() - receivedAt);
+
+            // Handle FILE request, optionally for a byte range
+            } else if ("FILE".equals(receivearray[0]) && receivearray.length > 1) {
+                CatalogEntry entry = lookup(receivearray[1]);
+                long offset = 0;
+                long length = -1;
+                int chunkSize = Protocol.CHUNK_SIZE;
+                if (receivearray.length > 3) {
+                    offset = parseLong(receivearray[2]);
+                    length = parseLong(receivearray[3]);
+                }
+                if (receivearray.length > 4) {
+                    chunkSize = parseInt(receivearray[4], -1);
+                }
+                boolean deflate = receivearray.length > 5 && "deflate".equals(receivearray[5].trim());
+                if (entry == null) {
+                    send(tag + "ERR unknown file " + receivearray[1], from);
+                } else if (receivearray.length == 3 || receivearray.length > 3 && (offset < 0 || length <= 0)) {
+                    send(tag + "ERR bad range", from);
+                } else if (chunkSize <= 0) {
+                    send(tag + "ERR bad chunk size", from);
+                } else {
+                    entry = catalog.withChecksum(entry);
+                    startSession(entry, offset, length, Protocol.chunkSize(chunkSize), deflate, from, tag, receivedAt);
+                }
+
+            // Handle CAST request: join, or start, the multicast pass of the file
+            } else if ("CAST".equals(receivearray[0]) && receivearray.length > 1) {
+                CatalogEntry entry = lookup(receivearray[1]);
+                int chunkSize = receivearray.length > 2 ? parseInt(receivearray[2], -1) : Protocol.CHUNK_SIZE;
+                if (entry == null) {
+                    send(tag + "ERR unknown file " + receivearray[1], from);
+                } else if (chunkSize <= 0) {
+                    send(tag + "ERR bad chunk size", from);
+                } else if (transport instanceof SecureTransport) {
+                    send(tag + "ERR casts are not available on a secure server", from);
+                } else {
+                    send(tag + joinCast(catalog.withChecksum(entry), Protocol.chunkSize(chunkSize), from).announcement(), from);
+                }
+
+            // Handle PROBE request: answer with a datagram of the probed size
+            } else if ("PROBE".equals(receivearray[0]) && receivearray.length > 1) {
+                probe(parseInt(receivearray[1], -1), from);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Request failed: " + message, e);
+        }
+    }
+
+    /**
+     * @return The reply with the tag in front, or the reply itself if there is no tag.
+     */
+    private static ByteBuffer tagged(String tag, byte[] reply) {
+        if (tag.isEmpty()) {
+            return ByteBuffer.wrap(reply);
+        }
+        byte[] prefix = tag.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(prefix.length + reply.length).put(prefix).put(reply).flip();
+    }
+
+    /**
+     * Answers a path MTU probe. The reply is sent unfragmented, so it only
+     * arrives if a datagram of that size fits the path; sizes outside what
+     * the server would send get an error, so the leecher moves on at once.
+     *
+     * @param size The probed datagram size.
+     * @param to   The leecher's address.
+     */
+    private void probe(int size, InetSocketAddress to) throws IOException {
+        byte[] text = ("PROBE " + size).getBytes(StandardCharsets.UTF_8);
+        if (size < Protocol.MIN_CHUNK_SIZE + Protocol.DATA_HEADER || size > Protocol.MAX_DATAGRAM_SIZE) {
+            send("ERR probe size " + size + " outside " + (Protocol.MIN_CHUNK_SIZE + Protocol.DATA_HEADER) + ".."
+                    + Protocol.MAX_DATAGRAM_SIZE, to);
+            return;
+        }
+        byte[] reply = new byte[size];
+        Arrays.fill(reply, (byte) ' ');
+        System.arraycopy(text, 0, reply, 0, text.length);
+        try {
+            send(ByteBuffer.wrap(reply), to);
+        } catch (IOException e) {
+            // Larger than the local interface allows: the same as being lost on the way
+            LOG.fine(() -> "Probe of " + size + " bytes not sent: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finds a catalog entry by its id as sent by the leecher.
+     *
+     * @param id The id text.
+     * @return The entry, or null if the id is not a number or not in the catalog.
+     */
+    private CatalogEntry lookup(String id) {
+        int value = parseInt(id, Integer.MIN_VALUE);
+        return value == Integer.MIN_VALUE ? null : catalog.get(value);
+    }
+
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int parseInt(String text, int fallback) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Registers a transfer session and runs it on the calling worker thread.
+     * The session is registered before its header goes out, so no ACK can
+     * arrive for an unknown transfer.
+     *
+     * @param entry      The catalog entry of the file to send, with its checksum.
+     * @param offset     The first byte to send.
+     * @param length     The number of bytes to send, or -1 for the rest of the file.
+     * @param chunkSize  The negotiated payload size of one DATA packet.
+     * @param deflate    Whether to compress each chunk.
+     * @param peer       The leecher's address.
+     * @param tag        The request's "#tag " to put in front of the header, or "".
+     * @param receivedAt System.nanoTime() when the FILE request arrived.
+     */
+    private void startSession(CatalogEntry entry, long offset, long length, int chunkSize, boolean deflate,
+            InetSocketAddress peer, String tag, long receivedAt) {
+        SessionKey key = new SessionKey(peer, nextTransferId.getAndIncrement());
+        TransferSession session = new TransferSession(this, key, entry, catalog.file(entry), offset, length, chunkSize,
+                deflate, tag, receivedAt);
+        sessions.put(key, session);
+        session.run();
+    }
+
+    /**
+     * Finds the cast of a file that is still streaming, or starts one. The
+     * chunk size of a new cast is the one its first leecher asked for; later
+     * leechers take what the announcement says.
+     *
+     * @param entry     The catalog entry of the file, with its checksum.
+     * @param chunkSize The payload size the leecher asked for.
+     * @param from      The leecher's address, which picks the interface for a new cast
+     *                  and may ask the cast for repairs from now on.
+     * @return The cast to join.
+     */
+    private CastSession joinCast(CatalogEntry entry, int chunkSize, InetSocketAddress from) throws IOException {
+        synchronized (castsByFile) {
+            CastSession cast = castsByFile.get(entry.id());
+            if (cast != null && cast.entry().checksum() == entry.checksum()) {
+                cast.join(from);
+                return cast;
+            }
+            cast = new CastSession(this, nextTransferId.getAndIncrement(), entry, catalog.file(entry), chunkSize,
+                    Multicast.interfaceFor(from));
+            cast.join(from);
+            castsByFile.put(entry.id(), cast);
+            casts.put(cast.header().transferId(), cast);
+            workers.execute(cast);
+            return cast;
+        }
+    }
+
+    /**
+     * Stops new leechers joining a cast whose pass has ended; they get a new pass instead.
+     *
+     * @param cast The cast that has sent every chunk once.
+     */
+    void castStreamed(CastSession cast) {
+        synchronized (castsByFile) {
+            castsByFile.remove(cast.entry().id(), cast);
+        }
+    }
+
+    /**
+     * Removes a cast that has stopped answering NACKs.
+     *
+     * @param cast The cast that has ended.
+     */
+    void endCast(CastSession cast) {
+        castStreamed(cast);
+        casts.remove(cast.header().transferId());
+    }
+
+    private void repair(CastSession cast, InetSocketAddress from, int first, long missing) {
+        try {
+            cast.repair(from, first, missing);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Repair for " + from + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes a finished session.
+     *
+     * @param session The session that has ended.
+     */
+    void endSession(TransferSession session) {
+        sessions.remove(session.key());
+    }
+
+    /**
+     * Sends a text message to a leecher. The text is encoded once.
+     */
+    void send(String message, InetSocketAddress to) throws IOException {
+        send(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), to);
+    }
+
+    /**
+     * Sends a packet to a leecher. Safe to call from any session thread.
+     */
+    void send(ByteBuffer packet, InetSocketAddress to) throws IOException {
+        metrics.sent(packet.remaining());
+        transport.send(packet, to);
+    }
+
+    /**
+     * Registers the metrics MBean and starts the snapshot log. Failures only
+     * cost observability, so they are logged rather than thrown.
+     */
+    private void registerMetrics() {
+        try {
+            mbeanName = new ObjectName("udp:type=FileServer,port=" + port());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbeanName);
+        } catch (JMException e) {
+            mbeanName = null;
+            LOG.log(Level.WARNING, "Could not register metrics MBean", e);
+        }
+        if (METRICS_INTERVAL > 0) {
+            snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "udp-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleAtFixedRate(() -> LOG.info(metrics.snapshot()),
+                    METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops accepting work and closes the transport.
+     */
+    public void close() throws IOException {
+        workers.shutdownNow();
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                LOG.log(Level.FINE, "Metrics MBean already gone", e);
+            }
+        }
+        transport.close();
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opens ChunkSources for the files being served.
+ *
+ * With -Dudp.serve=mmap, files are served from memory-mapped regions shared by
+ * every concurrent transfer of the same file; a mapping is dropped once its
+ * last transfer closes. The default, channel, gives each transfer its own
+ * FileChannel and reads straight into direct packet buffers.
+ */
+public class FileSources {
+
+    private record Key(String path, long length, long lastModified) {
+    }
+
+    private final boolean mapped;
+    private final Map<Key, MappedFile> open = new HashMap<>();
+
+    /**
+     * Creates a factory using the mode selected by the udp.serve system property.
+     */
+    public FileSources() {
+        this("mmap".equals(System.getProperty("udp.serve")));
+    }
+
+    /**
+     * Creates a factory.
+     *
+     * @param mapped true to serve from shared memory mappings.
+     */
+    public FileSources(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    /**
+     * Opens a file for serving.
+     *
+     * @param file The file.
+     * @return A source the caller must close.
+     */
+    public ChunkSource open(File file) throws IOException {
+        if (!mapped) {
+            return new ChannelChunkSource(file);
+        }
+        // A changed file gets a fresh mapping; transfers already running keep the old one
+        Key key = new Key(file.getAbsolutePath(), file.length(), file.lastModified());
+        MappedFile mappedFile;
+        synchronized (open) {
+            mappedFile = open.get(key);
+            if (mappedFile == null) {
+                mappedFile = new MappedFile(file);
+                open.put(key, mappedFile);
+            }
+            mappedFile.retain();
+        }
+        MappedFile shared = mappedFile;
+        return new ChunkSource() {
+            @Override
+            public long size() {
+                return shared.size();
+            }
+
+            @Override
+            public int read(long offset, ByteBuffer dst) throws IOException {
+                return shared.read(offset, dst);
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (open) {
+                    if (shared.release()) {
+                        open.remove(key);
+                        shared.close();
+                    }
+                }
+            }
+        };
+    }
+}
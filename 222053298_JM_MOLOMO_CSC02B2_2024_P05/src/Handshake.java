@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session setup between a leecher and a server that share a secret.
+ *
+ * Security is on when -Dudp.psk=secret is set on both sides; the secret
+ * should be long and random. Each side makes a fresh X25519 key pair:
+ *
+ *   leecher: [FRAME_HELLO][leecher public key][MAC of the above]
+ *   server:  [FRAME_WELCOME][server public key][MAC of the hello and the above]
+ *   leecher: an empty sealed frame, confirming it holds the session
+ *
+ * The MACs are HMAC-SHA256 keyed with the secret, so only a holder of the
+ * secret can start a session or answer one. Both sides then run HKDF over
+ * the X25519 shared secret, salted with the pre-shared one, for one AES key
+ * per direction. A recorded session stays unreadable even if the secret
+ * later leaks, since the X25519 private keys are never stored.
+ *
+ * The server checks a hello's MAC before doing any key agreement, so
+ * unauthenticated floods cost it one HMAC each.
+ */
+final class Handshake {
+
+    /** Bytes in a hello or a welcome: type, raw X25519 public key and a truncated MAC. */
+    static final int LENGTH = 1 + 32 + 16;
+
+    private static final int KEY = 32;
+    private static final int MAC = 16;
+
+    // How long the leecher waits for a welcome, and how many hellos it sends
+    private static final int TIMEOUT = 1000;
+    private static final int ATTEMPTS = 3;
+
+    // DER prefix of an X.509-encoded X25519 public key; the raw key follows it
+    private static final byte[] X25519_PREFIX = { 0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00 };
+
+    private static final byte[] INFO = "udp-secure v1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] PSK = psk(System.getProperty("udp.psk"));
+
+    private final KeyPair keys;
+    private final byte[] hello;
+
+    /**
+     * Starts a handshake on the leecher's side with a fresh key pair.
+     */
+    Handshake() throws GeneralSecurityException {
+        this.keys = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        this.hello = frame(SecureSession.FRAME_HELLO, raw(keys.getPublic()), new byte[0]);
+    }
+
+    /**
+     * @return true if -Dudp.psk is set, so every datagram must be sealed.
+     */
+    static boolean enabled() {
+        return PSK != null;
+    }
+
+    /**
+     * @return The hello to send to the server.
+     */
+    byte[] hello() {
+        return hello.clone();
+    }
+
+    /**
+     * Completes the handshake from the server's welcome.
+     *
+     * @param welcome The received datagram.
+     * @return The session, or null if the datagram is not a welcome to this hello.
+     */
+    SecureSession finish(ByteBuffer welcome) throws GeneralSecurityException {
+        byte[] serverKey = verify(welcome, SecureSession.FRAME_WELCOME, hello);
+        if (serverKey == null) {
+            return null;
+        }
+        byte[] okm = derive(keys, serverKey, raw(keys.getPublic()), serverKey);
+        return new SecureSession(Arrays.copyOfRange(okm, 0, 16), Arrays.copyOfRange(okm, 16, 32));
+    }
+
+    /**
+     * The server's half of a handshake.
+     *
+     * @param clientKey The leecher's raw public key, to recognise a repeated hello.
+     * @param session   The session both sides will use.
+     * @param welcome   The reply to send, and send again if the hello is repeated.
+     */
+    record Accepted(byte[] clientKey, SecureSession session, byte[] welcome) {
+    }
+
+    /**
+     * Answers a hello on the server's side.
+     *
+     * @param hello The received datagram.
+     * @return The session and welcome, or null if the datagram is not an authentic hello.
+     */
+    static Accepted accept(ByteBuffer hello) throws GeneralSecurityException {
+        byte[] helloBytes = new byte[hello.remaining()];
+        hello.duplicate().get(helloBytes);
+        byte[] clientKey = verify(hello, SecureSession.FRAME_HELLO, new byte[0]);
+        if (clientKey == null) {
+            return null;
+        }
+        KeyPair keys = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        byte[] serverKey = raw(keys.getPublic());
+        byte[] okm = derive(keys, clientKey, clientKey, serverKey);
+        SecureSession session = new SecureSession(Arrays.copyOfRange(okm, 16, 32), Arrays.copyOfRange(okm, 0, 16));
+        return new Accepted(clientKey, session, frame(SecureSession.FRAME_WELCOME, serverKey, helloBytes));
+    }
+
+    /**
+     * Runs the leecher's side of a handshake on a socket.
+     *
+     * @param socket The leecher's socket; its timeout is restored afterwards.
+     * @param server The server address.
+     * @return The session to seal and open this socket's traffic with.
+     * @throws SocketTimeoutException if no welcome came back.
+     */
+    static SecureSession connect(DatagramSocket socket, InetSocketAddress server) throws IOException {
+        int previousTimeout = socket.getSoTimeout();
+        try {
+            Handshake handshake = new Handshake();
+            byte[] hello = handshake.hello();
+            byte[] buffer = new byte[LENGTH];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            socket.setSoTimeout(TIMEOUT);
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                // Repeats carry the same key, so the server answers them with the same welcome
+                socket.send(new DatagramPacket(hello, hello.length, server));
+                try {
+                    while (true) {
+                        reply.setLength(buffer.length);
+                        socket.receive(reply);
+                        SecureSession session = handshake.finish(ByteBuffer.wrap(buffer, 0, reply.getLength()));
+                        if (session != null) {
+                            confirm(socket, server, session);
+                            return session;
+                        }
+                    }
+                } catch (SocketTimeoutException lost) {
+                    // Hello or welcome dropped on the way; try again
+                }
+            }
+            throw new SocketTimeoutException("No handshake reply from " + server);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Handshake failed", e);
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+
+    /**
+     * Sends an empty sealed frame, so the server adopts the session at once
+     * instead of waiting for the first command. If it is lost, that command
+     * confirms the session instead.
+     */
+    private static void confirm(DatagramSocket socket, InetSocketAddress server, SecureSession session)
+            throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(SecureSession.OVERHEAD);
+        session.seal(ByteBuffer.allocate(0), frame);
+        socket.send(new DatagramPacket(frame.array(), frame.position(), server));
+    }
+
+    /**
+     * @return type, key and the MAC of prefix, type and key.
+     */
+    private static byte[] frame(byte type, byte[] key, byte[] prefix) throws GeneralSecurityException {
+        byte[] frame = new byte[LENGTH];
+        frame[0] = type;
+        System.arraycopy(key, 0, frame, 1, KEY);
+        byte[] mac = mac(prefix, frame, 1 + KEY);
+        System.arraycopy(mac, 0, frame, 1 + KEY, MAC);
+        return frame;
+    }
+
+    /**
+     * @return The public key a frame carries, or null if it is not an authentic frame of this type.
+     */
+    private static byte[] verify(ByteBuffer buf, byte type, byte[] prefix) throws GeneralSecurityException {
+        if (PSK == null || buf.remaining() != LENGTH || buf.get(buf.position()) != type) {
+            return null;
+        }
+        byte[] frame = new byte[LENGTH];
+        buf.duplicate().get(frame);
+        byte[] expected = Arrays.copyOf(mac(prefix, frame, 1 + KEY), MAC);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(frame, 1 + KEY, LENGTH))) {
+            return null;
+        }
+        return Arrays.copyOfRange(frame, 1, 1 + KEY);
+    }
+
+    private static byte[] mac(byte[] prefix, byte[] frame, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(PSK, "HmacSHA256"));
+        mac.update(prefix);
+        mac.update(frame, 0, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * HKDF-SHA256 of the X25519 shared secret, salted with the pre-shared key.
+     *
+     * @return 32 bytes: the leecher-to-server key, then the server-to-leecher key.
+     */
+    private static byte[] derive(KeyPair own, byte[] peerKey, byte[] clientKey, byte[] serverKey)
+            throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(own.getPrivate());
+        agreement.doPhase(publicKey(peerKey), true);
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(PSK, "HmacSHA256"));
+        byte[] prk = hmac.doFinal(agreement.generateSecret());
+        hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        hmac.update(INFO);
+        hmac.update(clientKey);
+        hmac.update(serverKey);
+        hmac.update((byte) 1);
+        return hmac.doFinal();
+    }
+
+    private static byte[] raw(PublicKey key) {
+        byte[] encoded = key.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - KEY, encoded.length);
+    }
+
+    private static PublicKey publicKey(byte[] raw) throws GeneralSecurityException {
+        byte[] encoded = Arrays.copyOf(X25519_PREFIX, X25519_PREFIX.length + KEY);
+        System.arraycopy(raw, 0, encoded, X25519_PREFIX.length, KEY);
+        return KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * @return SHA-256 of the secret, or null if none is set.
+     */
+    private static byte[] psk(String secret) {
+        if (secret == null || secret.isEmpty()) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values in power-of-two buckets.
+ *
+ * Recording is one LongAdder increment per bucket, count and sum, cheap
+ * enough for every request. Percentiles are reported as the upper bound of
+ * the bucket they fall in, so they are accurate to within a factor of two.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    // Bucket i holds values whose highest set bit is bit i - 1; bucket 0 holds zero
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one value; negative values count as zero.
+     *
+     * @param value The value.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 if there are none.
+     */
+    public long mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Estimates a percentile.
+     *
+     * @param p The percentile as a fraction, e.g. 0.99.
+     * @return The upper bound of the bucket holding the percentile, or 0 if nothing was recorded.
+     */
+    public long percentile(double p) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies files into a catalog's directory and registers them.
+ *
+ * Each file is copied region by region: the region is mapped, its CRC32C
+ * is taken from the mapping, and FileChannel.transferTo copies it inside
+ * the kernel from the same page-cache pages, so the file is read from disk
+ * once and never passes through a Java buffer. Size and checksum come out
+ * of the copy, so the server never has to read the file again to checksum
+ * it. The copy goes to a hidden temporary file that is renamed over the
+ * final name only when complete, and the entry is published only after
+ * that, so a leecher never sees a half-written file. A directory is copied
+ * on -Dudp.ingestThreads threads (the number of processors by default) and
+ * all of its files are registered together: one List.txt append and one
+ * new catalog snapshot.
+ *
+ * Blocks for the length of the copy, so the UI calls it off the FX thread.
+ */
+public class Ingest {
+
+    private static final int THREADS = Integer.getInteger("udp.ingestThreads", Runtime.getRuntime().availableProcessors());
+
+    // Bytes checksummed and transferred per step; bounds the mapped address space per copy
+    private static final long REGION = 64L << 20;
+
+    private final Catalog catalog;
+
+    /**
+     * Creates an ingester.
+     *
+     * @param catalog The catalog to copy files into.
+     */
+    public Ingest(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Copies one file into the catalog under an id, replacing any entry with that id.
+     *
+     * @param source The file to copy.
+     * @param id     The id leechers will request it by.
+     * @return The registered entry, with its size and checksum.
+     */
+    public CatalogEntry file(File source, int id) throws IOException {
+        CatalogEntry entry = copy(source, id);
+        catalog.add(List.of(entry));
+        return entry;
+    }
+
+    /**
+     * Copies every regular file in a directory into the catalog, in parallel,
+     * under consecutive ids reserved after the highest one in use. Nothing is
+     * registered unless every copy succeeds.
+     *
+     * @param directory The directory to ingest; subdirectories, hidden files and List.txt are skipped.
+     * @return The registered entries, in file name order.
+     */
+    public List<CatalogEntry> directory(File directory) throws IOException {
+        File[] files = directory.listFiles(file -> file.isFile() && !reserved(file.getName()));
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        if (files.length == 0) {
+            return List.of();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, files.length));
+        try {
+            // Ids are handed out up front so they follow name order whatever finishes first
+            int firstId = catalog.reserveIds(files.length);
+            List<Future<CatalogEntry>> copies = new ArrayList<>();
+            for (int i = 0; i < files.length; i++) {
+                File source = files[i];
+                int id = firstId + i;
+                copies.add(pool.submit(() -> copy(source, id)));
+            }
+            List<CatalogEntry> entries = new ArrayList<>();
+            for (Future<CatalogEntry> copy : copies) {
+                entries.add(copy.get());
+            }
+            catalog.add(entries);
+            return entries;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ingest interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Copies a file into the catalog directory, checksumming it on the way.
+     *
+     * @return The entry for the copy; not yet registered.
+     */
+    private CatalogEntry copy(File source, int id) throws IOException {
+        if (reserved(source.getName())) {
+            throw new IOException("Cannot serve a file named " + source.getName());
+        }
+        catalog.directory().mkdirs();
+        File target = new File(catalog.directory(), source.getName());
+        File temporary = new File(catalog.directory(), "." + target.getName() + ".ingest");
+        CRC32C crc = new CRC32C();
+        long size = 0;
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long length = in.size();
+            while (size < length) {
+                long n = Math.min(REGION, length - size);
+                MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, size, n);
+                crc.update(region);
+                for (long copied = 0; copied < n; ) {
+                    long sent = in.transferTo(size + copied, n - copied, out);
+                    if (sent <= 0) {
+                        throw new IOException("File shrank while copying: " + source);
+                    }
+                    copied += sent;
+                }
+                size += n;
+            }
+            out.force(false);
+        } catch (IOException e) {
+            temporary.delete();
+            throw e;
+        }
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return new CatalogEntry(id, target.getName(), size, crc.getValue());
+    }
+
+    /**
+     * @return true for names that would clash with the catalog's own files or a copy in progress.
+     */
+    private static boolean reserved(String name) {
+        return name.equals("List.txt") || name.startsWith(".");
+    }
+}
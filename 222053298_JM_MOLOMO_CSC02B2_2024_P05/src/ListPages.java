@@ -0,0 +1,77 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LIST replies for one catalog snapshot, packed into as few datagrams as fit.
+ *
+ * Each page is one datagram:
+ *
+ *   LIST page pageCount total next
+ *   id name
+ *   id name
+ *   ...
+ *
+ * where total is the number of catalog entries and next is the page to ask
+ * for with "LIST next", or -1 on the last page. Pages are encoded once per
+ * snapshot and reused for every leecher.
+ */
+public final class ListPages {
+
+    /** Largest LIST datagram: a 1500-byte Ethernet MTU minus IP and UDP headers. */
+    public static final int MAX_PAGE = Integer.getInteger("udp.listPage", 1472);
+
+    // Room for the header line: "LIST " + four ints with separators, a request tag in front and sealing around it
+    private static final int HEADER_RESERVE = Protocol.MAX_TAG + 5 + 4 * 11 + 1 + SecureSession.overhead();
+
+    private final List<byte[]> pages;
+
+    private ListPages(List<byte[]> pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * Packs catalog entries into pages of at most maxPage bytes. An entry
+     * too long for an empty page gets a page of its own.
+     *
+     * @param entries The entries in catalog order.
+     * @param maxPage The datagram size limit.
+     * @return The encoded pages; an empty catalog still has one page.
+     */
+    public static ListPages build(List<CatalogEntry> entries, int maxPage) {
+        List<StringBuilder> bodies = new ArrayList<>();
+        StringBuilder body = new StringBuilder();
+        int bodyBytes = 0;
+        for (CatalogEntry entry : entries) {
+            byte[] line = (entry.line() + "\n").getBytes(StandardCharsets.UTF_8);
+            if (bodyBytes > 0 && HEADER_RESERVE + bodyBytes + line.length > maxPage) {
+                bodies.add(body);
+                body = new StringBuilder();
+                bodyBytes = 0;
+            }
+            body.append(entry.line()).append('\n');
+            bodyBytes += line.length;
+        }
+        bodies.add(body);
+
+        List<byte[]> pages = new ArrayList<>(bodies.size());
+        for (int page = 0; page < bodies.size(); page++) {
+            int next = page + 1 < bodies.size() ? page + 1 : -1;
+            String header = "LIST " + page + " " + bodies.size() + " " + entries.size() + " " + next + "\n";
+            pages.add((header + bodies.get(page)).getBytes(StandardCharsets.UTF_8));
+        }
+        return new ListPages(pages);
+    }
+
+    /**
+     * @param page The page number.
+     * @return The encoded page, or null if there is no such page.
+     */
+    public byte[] page(int page) {
+        return page >= 0 && page < pages.size() ? pages.get(page) : null;
+    }
+
+    public int count() {
+        return pages.size();
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A file mapped into memory in fixed-size regions, shared by every transfer
+ * of that file.
+ *
+ * Regions are mapped lazily the first time a chunk inside them is read, so a
+ * leecher that only pulls part of a large file maps only that part. Chunks
+ * are copied from the mapping directly into the caller's packet buffer
+ * without passing through the heap.
+ */
+public class MappedFile {
+
+    /** Bytes covered by one mapped region. */
+    static final long REGION_SIZE = Long.getLong("udp.mmapRegion", 64L * 1024 * 1024);
+
+    private final FileChannel channel;
+    private final long size;
+    private final AtomicReferenceArray<MappedByteBuffer> regions;
+    private int references;
+
+    /**
+     * Opens a file for mapping.
+     *
+     * @param file The file to map.
+     */
+    public MappedFile(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.regions = new AtomicReferenceArray<>((int) ((size + REGION_SIZE - 1) / REGION_SIZE));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Copies bytes starting at an offset into the destination, crossing into
+     * the next region if the range straddles a region boundary.
+     *
+     * @param offset The file offset.
+     * @param dst    The destination buffer.
+     * @return The number of bytes copied.
+     */
+    public int read(long offset, ByteBuffer dst) throws IOException {
+        int copied = 0;
+        while (dst.hasRemaining() && offset < size) {
+            int index = (int) (offset / REGION_SIZE);
+            MappedByteBuffer region = region(index);
+            int start = (int) (offset - index * REGION_SIZE);
+            int length = Math.min(dst.remaining(), region.limit() - start);
+            dst.put(dst.position(), region, start, length);
+            dst.position(dst.position() + length);
+            offset += length;
+            copied += length;
+        }
+        return copied;
+    }
+
+    /**
+     * @return The region, mapping it first if no reader has yet. Two readers
+     *         racing to map the same region both map it, and both use the one
+     *         published first.
+     */
+    private MappedByteBuffer region(int index) throws IOException {
+        MappedByteBuffer region = regions.get(index);
+        if (region != null) {
+            return region;
+        }
+        long position = index * REGION_SIZE;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position));
+        return regions.compareAndSet(index, null, region) ? region : regions.get(index);
+    }
+
+    synchronized void retain() {
+        references++;
+    }
+
+    /**
+     * Drops one reference.
+     *
+     * @return true if no transfer uses the file any more.
+     */
+    synchronized boolean release() {
+        return --references == 0;
+    }
+
+    /**
+     * Closes the channel. The mappings stay valid until they are garbage collected.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the largest DATA payload that reaches this leecher from a server.
+ *
+ * Sends "PROBE size" for each candidate datagram size, largest first; the
+ * server answers with an unfragmented datagram of exactly that size, so the
+ * first reply that arrives whole marks a size that fits the path MTU. The
+ * default candidates are a 9000-byte jumbo frame and a 1500-byte Ethernet
+ * frame less the 28 bytes of IPv4 and UDP headers; set others with
+ * -Dudp.probe=size,size,... . The result is cached per server, so parallel
+ * streams and later downloads do not probe again. With -Dudp.psk set, the
+ * probes and the chunk size leave room for the SecureSession overhead, so
+ * sealed datagrams still fit.
+ */
+public final class MtuProbe {
+
+    private static final int[] CANDIDATES = sizes(System.getProperty("udp.probe", "8972,1472"));
+
+    // A lost probe costs this much per attempt, so keep it well under a LAN's patience
+    private static final int PROBE_TIMEOUT = 250;
+    private static final int ATTEMPTS = 2;
+
+    private static final Map<InetSocketAddress, Integer> chunkSizes = new ConcurrentHashMap<>();
+
+    private MtuProbe() {
+    }
+
+    /**
+     * Returns the chunk size to ask the server for, probing the path on first use.
+     *
+     * @param server The server address.
+     * @return The payload size of the largest probe that arrived, or Protocol.CHUNK_SIZE if none did.
+     */
+    public static int chunkSize(InetSocketAddress server) throws IOException {
+        Integer known = chunkSizes.get(server);
+        if (known != null) {
+            return known;
+        }
+        int chunkSize = Protocol.CHUNK_SIZE;
+        int overhead = SecureSession.overhead();
+        try (DatagramSocket socket = SecureSocket.open(server)) {
+            socket.setSoTimeout(PROBE_TIMEOUT);
+            for (int size : CANDIDATES) {
+                if (probe(socket, server, size - overhead)) {
+                    chunkSize = Protocol.chunkSize(size - overhead - Protocol.DATA_HEADER);
+                    break;
+                }
+            }
+        }
+        chunkSizes.put(server, chunkSize);
+        return chunkSize;
+    }
+
+    /**
+     * @return true if a reply of exactly the probed size came back.
+     */
+    private static boolean probe(DatagramSocket socket, InetSocketAddress server, int size) throws IOException {
+        byte[] request = ("PROBE " + size).getBytes(StandardCharsets.UTF_8);
+        String expected = "PROBE " + size;
+        String refused = "ERR probe size " + size + " ";
+        byte[] buffer = new byte[Transport.MAX_DATAGRAM];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            socket.send(new DatagramPacket(request, request.length, server));
+            try {
+                while (true) {
+                    reply.setLength(buffer.length);
+                    socket.receive(reply);
+                    String text = new String(buffer, 0, Math.min(reply.getLength(), 64), StandardCharsets.UTF_8);
+                    if (text.startsWith(refused)) {
+                        return false; // The server will not send this size
+                    }
+                    if (reply.getLength() == size && text.startsWith(expected + " ")) {
+                        return true;
+                    }
+                    // A late reply to an earlier probe; keep waiting for this one
+                }
+            } catch (SocketTimeoutException lost) {
+                // Dropped on the way, or never sent; try again
+            }
+        }
+        return false;
+    }
+
+    private static int[] sizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+}
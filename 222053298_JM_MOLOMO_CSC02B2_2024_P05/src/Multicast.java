@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Settings shared by the multicast sender and its leechers.
+ *
+ * Casts go to one group, set with -Dudp.castGroup=address:port
+ * (239.255.77.1:4446, an organisation-local address, by default); casts of
+ * different files share it and are told apart by their transfer ids. The
+ * interface is the one that routes to the other side, so a server and
+ * leechers on one machine meet on the loopback interface with no setup;
+ * set -Dudp.castInterface=name to pick one.
+ */
+public final class Multicast {
+
+    /** The group and port every cast is sent to. */
+    public static final InetSocketAddress GROUP = address(System.getProperty("udp.castGroup", "239.255.77.1:4446"));
+
+    private static final String INTERFACE = System.getProperty("udp.castInterface");
+
+    private Multicast() {
+    }
+
+    /**
+     * Finds the interface to send or join the group on.
+     *
+     * @param peer The address on the other side of the cast.
+     * @return The interface named by -Dudp.castInterface, or the one whose address routes to peer.
+     */
+    public static NetworkInterface interfaceFor(InetSocketAddress peer) throws IOException {
+        if (INTERFACE != null) {
+            NetworkInterface named = NetworkInterface.getByName(INTERFACE);
+            if (named == null) {
+                throw new IOException("No interface named " + INTERFACE);
+            }
+            return named;
+        }
+        // Connecting a UDP channel sends nothing, but makes the kernel pick the source address
+        try (DatagramChannel probe = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            probe.connect(peer);
+            InetAddress local = ((InetSocketAddress) probe.getLocalAddress()).getAddress();
+            NetworkInterface nif = NetworkInterface.getByInetAddress(local);
+            if (nif == null) {
+                throw new IOException("No interface reaches " + peer);
+            }
+            return nif;
+        }
+    }
+
+    private static InetSocketAddress address(String text) {
+        int colon = text.lastIndexOf(':');
+        return new InetSocketAddress(text.substring(0, colon), Integer.parseInt(text.substring(colon + 1)));
+    }
+}
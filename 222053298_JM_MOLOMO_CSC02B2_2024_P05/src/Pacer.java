@@ -0,0 +1,56 @@
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Spaces out a transfer's packets to respect its own rate cap and any
+ * shared caps, such as the server-wide one.
+ */
+public class Pacer {
+
+    /** A pacer that never delays. */
+    public static final Pacer NONE = new Pacer();
+
+    private final TokenBucket[] buckets;
+
+    /**
+     * @param buckets The rate limits that all apply; null entries are ignored.
+     */
+    public Pacer(TokenBucket... buckets) {
+        this.buckets = Arrays.stream(buckets).filter(Objects::nonNull).toArray(TokenBucket[]::new);
+    }
+
+    /**
+     * Takes the tokens for one packet if every bucket has them. Each bucket
+     * checks and takes in one step; if one refuses, the buckets before it
+     * get their tokens back, so a refused packet costs nothing.
+     *
+     * @param bytes The packet size.
+     * @return 0 if the packet may be sent now, otherwise the nanoseconds to wait.
+     */
+    public long tryAcquire(int bytes) {
+        for (int i = 0; i < buckets.length; i++) {
+            long wait = buckets[i].tryTake(bytes);
+            if (wait > 0) {
+                for (int j = 0; j < i; j++) {
+                    buckets[j].refund(bytes);
+                }
+                for (int j = i + 1; j < buckets.length; j++) {
+                    wait = Math.max(wait, buckets[j].delay(bytes));
+                }
+                return wait;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Charges a packet that must go out regardless, such as a retransmission.
+     *
+     * @param bytes The packet size.
+     */
+    public void charge(int bytes) {
+        for (TokenBucket bucket : buckets) {
+            bucket.take(bytes);
+        }
+    }
+}
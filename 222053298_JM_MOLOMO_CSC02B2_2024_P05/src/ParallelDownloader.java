@@ -0,0 +1,189 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Downloads one file over one or more concurrent streams, resuming where an
+ * earlier attempt stopped.
+ *
+ * The missing part of the file is split into byte ranges; each range is
+ * fetched with a ranged "FILE id offset length" request on its own socket,
+ * so it gets its own transfer id and window on the server, and its chunks
+ * are written at their file offsets with positional FileChannel writes.
+ * Written blocks are recorded in a ChunkBitmap sidecar ("name.part"), so a
+ * download that dies halfway only re-requests the blocks it is missing.
+ * Each chunk's CRC32C is checked as it arrives and kept in the sidecar; at
+ * the end the chunk CRCs are combined into the file checksum and compared
+ * with the server's, so the file is verified without being read again.
+ * With -Dudp.compress=deflate the server compresses each chunk it can.
+ */
+public class ParallelDownloader {
+
+    private static final Logger LOG = Logger.getLogger(ParallelDownloader.class.getName());
+
+    /** Default number of streams, set with -Dudp.streams. */
+    public static final int STREAMS = Integer.getInteger("udp.streams", 4);
+
+    /** Whether to ask for Deflate-compressed chunks, set with -Dudp.compress=deflate. */
+    public static final boolean COMPRESS = "deflate".equals(System.getProperty("udp.compress"));
+
+    // Ranges smaller than this are not worth a stream of their own
+    private static final long MIN_RANGE = 256 * 1024;
+
+    private final InetSocketAddress server;
+    private final int streams;
+
+    /**
+     * Creates a downloader.
+     *
+     * @param server  The server address.
+     * @param streams The maximum number of concurrent streams; 1 for a single stream.
+     */
+    public ParallelDownloader(InetSocketAddress server, int streams) {
+        this.server = server;
+        this.streams = Math.max(1, streams);
+    }
+
+    /**
+     * Downloads a file, or the part of it an earlier attempt did not finish.
+     *
+     * @param fileId    The id of the file.
+     * @param outputDir The directory to write it to.
+     * @return The downloaded file.
+     */
+    public File download(int fileId, File outputDir) throws IOException {
+        CatalogEntry entry;
+        try (DatagramSocket socket = SecureSocket.open(server)) {
+            entry = Downloads.stat(socket, server, fileId);
+        }
+        String name = entry.name();
+        long size = entry.size();
+        long checksum = entry.checksum();
+
+        outputDir.mkdirs();
+        File outputFile = new File(outputDir, name);
+        File sidecar = new File(outputDir, name + ".part");
+        if (!outputFile.exists()) {
+            sidecar.delete(); // Progress without the partial file is worthless
+        }
+
+        // A resumed download keeps its block size; a new one uses the largest the path carries
+        int chunkSize = ChunkBitmap.blockSizeOf(sidecar);
+        if (chunkSize <= 0) {
+            chunkSize = MtuProbe.chunkSize(server);
+        }
+
+        try (ChunkBitmap bitmap = ChunkBitmap.open(sidecar, size, checksum, chunkSize)) {
+            OpenOption[] options = bitmap.isResumed()
+                    ? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE }
+                    : new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING };
+            List<long[]> ranges = split(bitmap.missingRanges(), bitmap.blockSize());
+            if (bitmap.isResumed()) {
+                LOG.info("Resuming " + name + ": " + ranges.size() + " ranges missing");
+            }
+
+            try (FileChannel channel = FileChannel.open(outputFile.toPath(), options)) {
+                fetchAll(fileId, ranges, channel, bitmap);
+            }
+            if (!bitmap.isComplete()) {
+                throw new IOException("Download incomplete: " + name);
+            }
+            if (bitmap.fileChecksum() != checksum) {
+                bitmap.delete(); // Start over next time
+                throw new IOException("Checksum mismatch: " + name);
+            }
+            bitmap.delete();
+        }
+        return outputFile;
+    }
+
+    /**
+     * Fetches ranges on up to streams concurrent sockets.
+     */
+    private void fetchAll(int fileId, List<long[]> ranges, FileChannel channel, ChunkBitmap bitmap) throws IOException {
+        if (ranges.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(streams, ranges.size()));
+        try {
+            List<Future<?>> fetches = new ArrayList<>();
+            for (long[] range : ranges) {
+                fetches.add(pool.submit(() -> {
+                    fetchRange(fileId, range[0], range[1], channel, bitmap);
+                    return null;
+                }));
+            }
+            for (Future<?> fetch : fetches) {
+                fetch.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits the missing ranges into pieces so the streams share the work,
+     * keeping piece boundaries on block boundaries.
+     */
+    private List<long[]> split(List<long[]> missing, int blockSize) {
+        long total = 0;
+        for (long[] range : missing) {
+            total += range[1];
+        }
+        long target = Math.max(MIN_RANGE, (total + streams - 1) / streams);
+        target = (target + blockSize - 1) / blockSize * blockSize;
+
+        List<long[]> pieces = new ArrayList<>();
+        for (long[] range : missing) {
+            for (long offset = range[0]; offset < range[0] + range[1]; offset += target) {
+                pieces.add(new long[] { offset, Math.min(target, range[0] + range[1] - offset) });
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * Fetches one byte range on its own socket, writes it in place and marks it in the bitmap.
+     */
+    private void fetchRange(int fileId, long offset, long length, FileChannel channel, ChunkBitmap bitmap) throws IOException {
+        try (DatagramSocket socket = SecureSocket.open(server)) {
+            TransferHeader header = Downloads.requestFile(socket, server,
+                    "FILE " + fileId + " " + offset + " " + length + " " + bitmap.blockSize() + (COMPRESS ? " deflate" : ""));
+            if (header.checksum() != bitmap.expectedChecksum()) {
+                throw new IOException("File changed on the server: " + header.name());
+            }
+            if (header.chunkSize() != bitmap.blockSize()) {
+                throw new IOException("Server chunk size " + header.chunkSize() + " does not match " + bitmap.blockSize());
+            }
+            Downloads.receive(socket, server, header, (index, payload, crc) -> {
+                long position = header.chunkOffset(index);
+                int written = payload.remaining();
+                write(channel, payload, position);
+                bitmap.mark(position, written, crc);
+            });
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer payload, long position) throws IOException {
+        while (payload.hasRemaining()) {
+            position += channel.write(payload, position);
+        }
+    }
+}
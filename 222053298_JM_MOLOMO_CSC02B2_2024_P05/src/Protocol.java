@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format shared by the sender and the leecher.
+ *
+ * Control messages (LIST, FILE, ...) stay plain text. File data and
+ * acknowledgements travel in small binary packets whose first byte is a
+ * packet type below the printable range, so the two never get confused.
+ *
+ * DATA: [type][transferId:int][seq:int][crc32c of payload:int][payload...]
+ * ACK:  [type][transferId:int][next expected seq:int][selective ack bits:long]
+ * NACK: [type][transferId:int][first missing seq:int][missing bits:long]
+ *
+ * A DATA packet of type TYPE_DATA_DEFLATE carries its chunk compressed with
+ * raw Deflate; the CRC covers the compressed bytes as sent. A leecher asks
+ * for compression by adding "deflate" to its FILE request, and the server
+ * still sends TYPE_DATA for any chunk that does not get smaller.
+ *
+ * Bit i of the selective ack bits means seq (next + 1 + i) has been received.
+ * NACKs are only used by multicast transfers (see CastSession): bit i of the
+ * missing bits means seq (first + 1 + i) is missing as well, and the server
+ * answers by unicasting those chunks again.
+ * A DATA packet whose payload does not match its CRC is dropped by the
+ * leecher and so never acknowledged, which makes the sender retransmit it.
+ * Packet buffers always hold one packet in [0, limit); the accessors below
+ * use absolute reads and never move the buffer's position.
+ *
+ * The chunk size is agreed per transfer: the leecher probes the path with
+ * "PROBE size" requests, which the server answers with an unfragmentable
+ * datagram of exactly that size, and asks for the largest size that got
+ * through in its FILE request. Requests without a size get CHUNK_SIZE.
+ *
+ * A text request may start with "#tag ", which the server puts in front of
+ * its reply, so a client with several requests in flight on one socket
+ * can tell the replies apart (see AsyncFileClient).
+ */
+public final class Protocol {
+
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final byte TYPE_DATA_DEFLATE = 3;
+    public static final byte TYPE_NACK = 4;
+
+    public static final int DATA_HEADER = 1 + 4 + 4 + 4;
+    public static final int ACK_LENGTH = 1 + 4 + 4 + 8;
+
+    /** Payload bytes carried by one DATA packet when the leecher does not ask for a size. */
+    public static final int CHUNK_SIZE = Integer.getInteger("udp.chunkSize", 1024);
+
+    /** Largest datagram the server sends, set with -Dudp.maxDatagram; 8972 fills a 9000-byte jumbo frame. */
+    public static final int MAX_DATAGRAM_SIZE = Integer.getInteger("udp.maxDatagram", 8972);
+
+    /** Largest payload a leecher may negotiate. */
+    public static final int MAX_CHUNK_SIZE = MAX_DATAGRAM_SIZE - DATA_HEADER;
+
+    /** Smallest payload a leecher may negotiate; a 548-byte datagram fits the 576-byte IPv4 minimum. */
+    public static final int MIN_CHUNK_SIZE = 548 - DATA_HEADER;
+
+    /** Longest "#tag " prefix the server echoes on a reply: '#', an int and a space. */
+    public static final int MAX_TAG = 1 + 11 + 1;
+
+    /** Number of unacknowledged DATA packets the sender keeps in flight. */
+    public static final int WINDOW_SIZE = Integer.getInteger("udp.window", 64);
+
+    private Protocol() {
+    }
+
+    /**
+     * Checks whether a received datagram is a binary packet rather than a text command.
+     *
+     * @param buf The datagram.
+     * @return true if the first byte is a known packet type.
+     */
+    public static boolean isPacket(ByteBuffer buf) {
+        return buf.limit() > 0 && (isData(buf) || buf.get(0) == TYPE_ACK || buf.get(0) == TYPE_NACK);
+    }
+
+    /**
+     * @param buf A datagram.
+     * @return true if it is a DATA packet, raw or compressed.
+     */
+    public static boolean isData(ByteBuffer buf) {
+        return buf.limit() > 0 && (buf.get(0) == TYPE_DATA || buf.get(0) == TYPE_DATA_DEFLATE);
+    }
+
+    /**
+     * Writes a DATA header in front of a payload that is already in place.
+     *
+     * @param buf        Buffer holding the payload at offset DATA_HEADER.
+     * @param type       TYPE_DATA, or TYPE_DATA_DEFLATE for a compressed payload.
+     * @param transferId The transfer the chunk belongs to.
+     * @param seq        The chunk sequence number.
+     * @param crc        The CRC32C of the payload as sent.
+     */
+    public static void putDataHeader(ByteBuffer buf, byte type, int transferId, int seq, long crc) {
+        buf.put(0, type).putInt(1, transferId).putInt(5, seq).putInt(9, (int) crc);
+    }
+
+    /**
+     * Encodes an ACK packet and flips the buffer ready for sending.
+     *
+     * @param buf        Destination buffer of at least ACK_LENGTH bytes.
+     * @param transferId The transfer being acknowledged.
+     * @param next       The lowest sequence number not yet received.
+     * @param sack       Selective acknowledgement bits for the sequences after next.
+     */
+    public static void putAck(ByteBuffer buf, int transferId, int next, long sack) {
+        buf.clear();
+        buf.put(TYPE_ACK).putInt(transferId).putInt(next).putLong(sack).flip();
+    }
+
+    /**
+     * Encodes a NACK packet and flips the buffer ready for sending.
+     *
+     * @param buf        Destination buffer of at least ACK_LENGTH bytes.
+     * @param transferId The multicast transfer with missing chunks.
+     * @param first      The first missing sequence number.
+     * @param missing    Bits for the sequences after first that are missing too.
+     */
+    public static void putNack(ByteBuffer buf, int transferId, int first, long missing) {
+        buf.clear();
+        buf.put(TYPE_NACK).putInt(transferId).putInt(first).putLong(missing).flip();
+    }
+
+    public static byte type(ByteBuffer buf) {
+        return buf.get(0);
+    }
+
+    public static int transferId(ByteBuffer buf) {
+        return buf.getInt(1);
+    }
+
+    public static int seq(ByteBuffer buf) {
+        return buf.getInt(5);
+    }
+
+    public static long crc(ByteBuffer buf) {
+        return buf.getInt(9) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return The selective ack bits of an ACK, or the missing bits of a NACK.
+     */
+    public static long sack(ByteBuffer buf) {
+        return buf.getLong(9);
+    }
+
+    /**
+     * Clamps a requested chunk size to what the server is willing to send.
+     *
+     * @param requested The payload size the leecher asked for.
+     * @return The payload size to use.
+     */
+    public static int chunkSize(int requested) {
+        return Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, requested));
+    }
+
+    /**
+     * Number of chunks needed to carry a file.
+     *
+     * @param size      The file size in bytes.
+     * @param chunkSize The payload size of one chunk.
+     * @return The chunk count.
+     */
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The keys and counters of one authenticated peer, after a Handshake.
+ *
+ * Every datagram in either direction is sealed with AES-128-GCM:
+ *
+ *   [FRAME_SEALED][seq 8 bytes][ciphertext][16-byte tag]
+ *
+ * The sequence number is the nonce, so a sender never repeats one, and it
+ * is authenticated with the payload, so it cannot be altered. The receiver
+ * keeps the highest sequence number it has accepted and a 64-bit mask of
+ * the ones just below it: a packet that was already accepted, or is older
+ * than the mask, is dropped as a replay. Each direction has its own key.
+ *
+ * Each session keeps one Cipher per direction for its whole life and only
+ * re-initialises it with the next nonce, and seals into and opens from
+ * buffers the caller supplies, so a packet costs no allocation beyond its
+ * parameter spec. Sealing is safe from any thread; so is opening. Senders
+ * on several threads go through send, which puts frames on the wire in
+ * sequence order, so none falls behind the receiver's replay window.
+ */
+public final class SecureSession {
+
+    public static final byte FRAME_HELLO = 10;
+    public static final byte FRAME_WELCOME = 11;
+    public static final byte FRAME_SEALED = 12;
+
+    /** Bytes a sealed frame adds to its payload: type, sequence number and tag. */
+    public static final int OVERHEAD = 1 + 8 + 16;
+
+    private static final int HEADER = 1 + 8;
+    private static final int TAG_BITS = 128;
+    private static final int REPLAY_WINDOW = Long.SIZE;
+
+    /**
+     * Puts a sealed frame on the wire.
+     */
+    interface Sender {
+        /**
+         * @param frame The frame in [position, limit).
+         */
+        void send(ByteBuffer frame) throws IOException;
+    }
+
+    private final SecretKeySpec sendKey;
+    private final SecretKeySpec receiveKey;
+    private final Cipher sealer;
+    private final Cipher opener;
+    private final byte[] sendNonce = new byte[12];
+    private final byte[] receiveNonce = new byte[12];
+
+    // Guarded by sealer
+    private long nextSeq;
+
+    // Guarded by opener: the highest sequence number accepted, and bit i set if highest - i was
+    private long highest = -1;
+    private long seen;
+
+    /**
+     * @param sendKey    The AES key for frames this side sends.
+     * @param receiveKey The AES key for frames this side receives.
+     */
+    SecureSession(byte[] sendKey, byte[] receiveKey) throws GeneralSecurityException {
+        this.sendKey = new SecretKeySpec(sendKey, "AES");
+        this.receiveKey = new SecretKeySpec(receiveKey, "AES");
+        this.sealer = Cipher.getInstance("AES/GCM/NoPadding");
+        this.opener = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * @return The bytes sealing adds to every datagram: OVERHEAD when -Dudp.psk is set, otherwise 0.
+     */
+    public static int overhead() {
+        return Handshake.enabled() ? OVERHEAD : 0;
+    }
+
+    /**
+     * Seals the remaining bytes of a packet into a frame.
+     *
+     * @param plain The packet; its position is advanced to its limit.
+     * @param out   Receives the frame at its position; needs OVERHEAD more bytes than the packet.
+     */
+    public void seal(ByteBuffer plain, ByteBuffer out) throws IOException {
+        synchronized (sealer) {
+            long seq = nextSeq++;
+            int start = out.position();
+            out.put(FRAME_SEALED).putLong(seq);
+            try {
+                sealer.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_BITS, nonce(sendNonce, seq)));
+                sealer.updateAAD(out.duplicate().flip().position(start));
+                sealer.doFinal(plain, out);
+            } catch (ShortBufferException e) {
+                out.position(start);
+                throw new IOException("No room to seal " + plain.remaining() + " bytes", e);
+            } catch (GeneralSecurityException e) {
+                out.position(start);
+                throw new IOException("Seal failed", e);
+            }
+        }
+    }
+
+    /**
+     * Seals a packet and sends it before any later packet of this session is sealed.
+     *
+     * @param plain  The packet; its position is advanced to its limit.
+     * @param out    A cleared buffer with OVERHEAD more bytes than the packet.
+     * @param sender Sends the frame.
+     */
+    public void send(ByteBuffer plain, ByteBuffer out, Sender sender) throws IOException {
+        synchronized (sealer) {
+            seal(plain, out);
+            sender.send(out.flip());
+        }
+    }
+
+    /**
+     * Opens a frame, if it is authentic and not a replay.
+     *
+     * @param frame The received datagram in [position, limit); left unchanged.
+     * @param out   Receives the payload at its position.
+     * @return true if the payload was written; false if the frame was forged, damaged, replayed or not sealed.
+     */
+    public boolean open(ByteBuffer frame, ByteBuffer out) throws IOException {
+        int start = frame.position();
+        if (frame.remaining() < OVERHEAD || frame.get(start) != FRAME_SEALED) {
+            return false;
+        }
+        long seq = frame.getLong(start + 1);
+        synchronized (opener) {
+            if (!fresh(seq)) {
+                return false; // Refused before spending a decryption on it
+            }
+            int outStart = out.position();
+            try {
+                opener.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(TAG_BITS, nonce(receiveNonce, seq)));
+                opener.updateAAD(frame.duplicate().limit(start + HEADER));
+                opener.doFinal(frame.duplicate().position(start + HEADER), out);
+            } catch (AEADBadTagException e) {
+                out.position(outStart);
+                return false;
+            } catch (ShortBufferException e) {
+                out.position(outStart);
+                throw new IOException("No room to open " + frame.remaining() + " bytes", e);
+            } catch (GeneralSecurityException e) {
+                out.position(outStart);
+                throw new IOException("Open failed", e);
+            }
+            accept(seq);
+            return true;
+        }
+    }
+
+    /**
+     * @return true if seq is newer than the window or inside it and not yet accepted.
+     */
+    private boolean fresh(long seq) {
+        if (seq > highest) {
+            return true;
+        }
+        long age = highest - seq;
+        return age < REPLAY_WINDOW && (seen & (1L << age)) == 0;
+    }
+
+    private void accept(long seq) {
+        if (seq > highest) {
+            long shift = seq - highest;
+            seen = shift >= REPLAY_WINDOW ? 1 : (seen << shift) | 1;
+            highest = seq;
+        } else {
+            seen |= 1L << (highest - seq);
+        }
+    }
+
+    /**
+     * @return The 96-bit GCM nonce for a sequence number: four zero bytes and the number.
+     */
+    private static byte[] nonce(byte[] nonce, long seq) {
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (seq >>> (56 - 8 * i));
+        }
+        return nonce;
+    }
+}
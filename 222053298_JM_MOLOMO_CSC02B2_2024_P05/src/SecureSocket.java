@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * A leecher's DatagramSocket to one server, with every datagram sealed.
+ *
+ * Drop-in for the blocking download paths: send seals the packet's bytes
+ * and receive hands back only authentic, fresh payloads from the server,
+ * so callers keep working with plain DatagramPackets. The sealed frames go
+ * through one send and one receive buffer owned by the socket.
+ */
+public class SecureSocket extends DatagramSocket {
+
+    private final InetSocketAddress server;
+    private SecureSession session;
+
+    // Guarded by themselves
+    private final ByteBuffer sendFrame = ByteBuffer.allocate(Protocol.MAX_DATAGRAM_SIZE + SecureSession.OVERHEAD);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendFrame.array(), 0);
+    private final ByteBuffer receiveFrame = ByteBuffer.allocate(Transport.MAX_DATAGRAM);
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveFrame.array(), receiveFrame.capacity());
+
+    private SecureSocket(InetSocketAddress server) throws SocketException {
+        this.server = server;
+    }
+
+    /**
+     * Opens a socket for talking to a server: a SecureSocket that has
+     * completed its handshake if -Dudp.psk is set, otherwise a plain one.
+     *
+     * @param server The server address.
+     * @return The bound socket.
+     */
+    public static DatagramSocket open(InetSocketAddress server) throws IOException {
+        if (!Handshake.enabled()) {
+            return new DatagramSocket();
+        }
+        SecureSocket socket = new SecureSocket(server);
+        try {
+            socket.session = Handshake.connect(socket, server);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException {
+        if (session == null) {
+            super.send(packet); // Still in the handshake
+            return;
+        }
+        synchronized (sendFrame) {
+            session.seal(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), sendFrame.clear());
+            sendPacket.setData(sendFrame.array(), 0, sendFrame.position());
+            sendPacket.setSocketAddress(packet.getSocketAddress());
+            super.send(sendPacket);
+        }
+    }
+
+    /**
+     * Receives the next authentic datagram from the server, skipping
+     * anything forged, replayed or from elsewhere. The packet is filled up
+     * to the end of its buffer, whatever its current length.
+     */
+    @Override
+    public void receive(DatagramPacket packet) throws IOException {
+        if (session == null) {
+            super.receive(packet);
+            return;
+        }
+        synchronized (receiveFrame) {
+            ByteBuffer out = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getData().length - packet.getOffset());
+            while (true) {
+                receivePacket.setLength(receiveFrame.capacity());
+                super.receive(receivePacket);
+                if (server.equals(receivePacket.getSocketAddress())
+                        && session.open(receiveFrame.clear().limit(receivePacket.getLength()), out.position(packet.getOffset()))) {
+                    packet.setLength(out.position() - packet.getOffset());
+                    packet.setSocketAddress(server);
+                    return;
+                }
+            }
+        }
+    }
+}
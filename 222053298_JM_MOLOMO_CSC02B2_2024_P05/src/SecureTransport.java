@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A transport that only talks to peers holding the pre-shared secret.
+ *
+ * Wraps the real transport: a hello is answered with a welcome (see
+ * Handshake), sealed frames from a peer with a session are opened and
+ * passed up, and everything else, including any unsealed command, is
+ * dropped before the server sees it. Sends are sealed for the peer they go
+ * to; a peer without a session gets nothing.
+ *
+ * A hello only earns a place among the handshakes awaiting confirmation:
+ * a small table, at most MAX_HANDSHAKES entries for HANDSHAKE_TTL, whose
+ * oldest entry makes way for a new one. An address becomes a peer, or
+ * moves to its new session, only when a frame sealed with that session
+ * arrives, which takes the leecher's half of the key agreement. Hellos,
+ * replayed or forged, from however many addresses, therefore never touch
+ * the peer table and cannot cut a leecher off or crowd one out. Peers
+ * silent for IDLE are forgotten.
+ *
+ * Frames are sealed into and opened from pooled buffers, and each peer's
+ * frames are sent in the order they were sealed. The transport below
+ * copies what it has to queue, so each buffer is back in its pool as soon
+ * as the call returns.
+ */
+public class SecureTransport implements Transport {
+
+    private static final Logger LOG = Logger.getLogger(SecureTransport.class.getName());
+
+    // Peers silent this long are forgotten; past MAX_PEERS, new sessions are refused
+    private static final long IDLE = TimeUnit.MINUTES.toMillis(10);
+    private static final int MAX_PEERS = 65536;
+
+    // Handshakes not confirmed this soon are forgotten; past MAX_HANDSHAKES, the oldest is
+    private static final long HANDSHAKE_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_HANDSHAKES = 1024;
+
+    private final Transport inner;
+    private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    // Guarded by itself; in the order the handshakes were answered
+    private final Map<InetSocketAddress, Unconfirmed> handshakes = new LinkedHashMap<>();
+    private final BufferPool sealPool = new BufferPool(Protocol.MAX_DATAGRAM_SIZE + SecureSession.OVERHEAD, 1024);
+    private final BufferPool openPool = new BufferPool(MAX_DATAGRAM, 64);
+    private final ScheduledExecutorService expiry;
+
+    /** Datagrams dropped as unauthenticated, replayed or from an unknown peer. */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Wraps a transport. Requires -Dudp.psk.
+     *
+     * @param inner The transport that really sends and receives.
+     */
+    public SecureTransport(Transport inner) {
+        if (!Handshake.enabled()) {
+            throw new IllegalStateException("Secure transport needs -Dudp.psk");
+        }
+        this.inner = inner;
+        this.expiry = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "udp-secure-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiry.scheduleAtFixedRate(this::expire, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Wraps a transport if -Dudp.psk is set.
+     *
+     * @param transport The transport to serve on.
+     * @return A SecureTransport around it, or the transport itself if security is off.
+     */
+    public static Transport ifConfigured(Transport transport) {
+        return Handshake.enabled() ? new SecureTransport(transport) : transport;
+    }
+
+    /**
+     * One address's confirmed session.
+     */
+    private static final class Peer {
+        final SecureSession session;
+        volatile long lastSeen = System.currentTimeMillis();
+
+        Peer(SecureSession session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * A handshake answered for an address but not yet confirmed by a sealed frame.
+     */
+    private record Unconfirmed(Handshake.Accepted accepted, long answeredAt) {
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        inner.start((packet, from) -> {
+            if (packet.remaining() > 0 && packet.get(packet.position()) == SecureSession.FRAME_HELLO) {
+                hello(packet, from);
+                return;
+            }
+            ByteBuffer plain = openPool.acquire();
+            try {
+                if (open(from, packet, plain)) {
+                    if (plain.flip().hasRemaining()) { // An empty frame only confirms the handshake
+                        receiver.onPacket(plain, from);
+                    }
+                } else {
+                    rejected.increment();
+                }
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not open frame from " + from, e);
+            } finally {
+                openPool.release(plain);
+            }
+        });
+    }
+
+    /**
+     * Opens a frame with the address's session, or with the handshake
+     * awaiting confirmation for it, which then becomes its session.
+     */
+    private boolean open(InetSocketAddress from, ByteBuffer packet, ByteBuffer plain) throws IOException {
+        Peer peer = peers.get(from);
+        if (peer != null && peer.session.open(packet, plain)) {
+            peer.lastSeen = System.currentTimeMillis();
+            return true;
+        }
+        Unconfirmed unconfirmed = unconfirmed(from);
+        if (unconfirmed == null || (peer == null && peers.size() >= MAX_PEERS)
+                || !unconfirmed.accepted().session().open(packet, plain)) {
+            return false;
+        }
+        synchronized (handshakes) {
+            handshakes.remove(from, unconfirmed);
+        }
+        peers.put(from, new Peer(unconfirmed.accepted().session()));
+        return true;
+    }
+
+    /**
+     * @return The handshake awaiting confirmation for an address, or null if there is none or it is stale.
+     */
+    private Unconfirmed unconfirmed(InetSocketAddress from) {
+        synchronized (handshakes) {
+            Unconfirmed unconfirmed = handshakes.get(from);
+            if (unconfirmed != null && unconfirmed.answeredAt() < System.currentTimeMillis() - HANDSHAKE_TTL) {
+                handshakes.remove(from);
+                return null;
+            }
+            return unconfirmed;
+        }
+    }
+
+    /**
+     * Answers a hello, resending the same welcome if the hello is a repeat.
+     */
+    private void hello(ByteBuffer packet, InetSocketAddress from) {
+        try {
+            Unconfirmed unconfirmed = unconfirmed(from);
+            byte[] key = new byte[32];
+            packet.duplicate().position(packet.position() + 1).get(key);
+            if (unconfirmed == null || !Arrays.equals(unconfirmed.accepted().clientKey(), key)) {
+                Handshake.Accepted accepted = Handshake.accept(packet);
+                if (accepted == null) {
+                    rejected.increment();
+                    return;
+                }
+                unconfirmed = new Unconfirmed(accepted, System.currentTimeMillis());
+                synchronized (handshakes) {
+                    handshakes.remove(from); // So a fresh handshake counts as the newest
+                    handshakes.put(from, unconfirmed);
+                    if (handshakes.size() > MAX_HANDSHAKES) {
+                        Iterator<Unconfirmed> oldest = handshakes.values().iterator();
+                        oldest.next();
+                        oldest.remove();
+                    }
+                }
+            }
+            inner.send(ByteBuffer.wrap(unconfirmed.accepted().welcome()), from);
+        } catch (GeneralSecurityException | IOException | IndexOutOfBoundsException e) {
+            LOG.log(Level.FINE, "Handshake with " + from + " failed", e);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer packet, InetSocketAddress to) throws IOException {
+        Peer peer = peers.get(to);
+        if (peer == null) {
+            packet.position(packet.limit()); // Nobody there to read it
+            return;
+        }
+        int length = packet.remaining() + SecureSession.OVERHEAD;
+        ByteBuffer frame = length <= sealPool.bufferSize() ? sealPool.acquire() : ByteBuffer.allocate(length);
+        try {
+            peer.session.send(packet, frame, sealed -> inner.send(sealed, to));
+        } finally {
+            sealPool.release(frame);
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        peers.values().removeIf(peer -> peer.lastSeen < now - IDLE);
+        synchronized (handshakes) {
+            handshakes.values().removeIf(unconfirmed -> unconfirmed.answeredAt() < now - HANDSHAKE_TTL);
+        }
+    }
+
+    /**
+     * @return The number of datagrams dropped as unauthenticated or replayed.
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int localPort() {
+        return inner.localPort();
+    }
+
+    @Override
+    public long sendBufferFull() {
+        return inner.sendBufferFull();
+    }
+
+    @Override
+    public long sendDropped() {
+        return inner.sendDropped();
+    }
+
+    @Override
+    public void close() throws IOException {
+        expiry.shutdownNow();
+        inner.close();
+    }
+}
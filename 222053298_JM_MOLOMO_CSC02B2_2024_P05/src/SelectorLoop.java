@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One thread multiplexing any number of ChannelTransports over a Selector.
+ *
+ * A failure in one transport's handling is logged and the loop carries
+ * on, so a bad packet or a bug in one receiver never silences the others.
+ * Final, since the constructor starts the thread on the fully built loop.
+ */
+public final class SelectorLoop implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(SelectorLoop.class.getName());
+
+    private static SelectorLoop shared;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    /**
+     * Opens a selector and starts its thread.
+     *
+     * @param name The thread name.
+     */
+    public SelectorLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return The process-wide loop, created on first use.
+     */
+    public static synchronized SelectorLoop shared() {
+        if (shared == null) {
+            try {
+                shared = new SelectorLoop("udp-selector");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return shared;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Runs a task on the selector thread, e.g. to register a channel or change interest ops.
+     *
+     * @param task The task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Selector task failed", e);
+                    }
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ChannelTransport transport = (ChannelTransport) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            transport.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            transport.onWritable();
+                        }
+                    } catch (ClosedChannelException e) {
+                        // Transport closed while its key was selected
+                    } catch (IOException | RuntimeException e) {
+                        LOG.log(Level.WARNING, "Transport handling failed", e);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Selector loop error", e);
+            } finally {
+                selector.selectedKeys().clear(); // Handled or not, never select the same keys again
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and histograms for one FileServer.
+ *
+ * Every counter is a LongAdder, so the dispatcher and many session threads
+ * can update them on the hot path without contending. Gauges that other
+ * objects already track, such as the number of active sessions, are read
+ * through suppliers when a snapshot is taken.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder unroutedAcks = new LongAdder();
+    private final LongAdder transfersCompleted = new LongAdder();
+    private final LongAdder transfersFailed = new LongAdder();
+
+    private final Histogram listLatency = new Histogram();
+    private final Histogram statLatency = new Histogram();
+    private final Histogram fileLatency = new Histogram();
+    private final Histogram transferRate = new Histogram();
+
+    private final IntSupplier activeSessions;
+    private final LongSupplier sendBufferFull;
+    private final LongSupplier sendDropped;
+    private final ChunkCache cache;
+
+    /**
+     * Creates the metrics for one server.
+     *
+     * @param activeSessions Reads the number of transfers in progress.
+     * @param sendBufferFull Reads the transport's count of sends that found the socket buffer full.
+     * @param sendDropped    Reads the transport's count of queued sends it dropped.
+     * @param cache          The server's chunk cache, whose hit and miss counts are reported.
+     */
+    public ServerMetrics(IntSupplier activeSessions, LongSupplier sendBufferFull, LongSupplier sendDropped,
+            ChunkCache cache) {
+        this.activeSessions = activeSessions;
+        this.sendBufferFull = sendBufferFull;
+        this.sendDropped = sendDropped;
+        this.cache = cache;
+    }
+
+    void sent(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    void received(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    void unroutedAck() {
+        unroutedAcks.increment();
+    }
+
+    /**
+     * Records the time from a LIST request's arrival to its reply.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    void listServed(long nanos) {
+        listLatency.record(nanos / 1000);
+    }
+
+    void statServed(long nanos) {
+        statLatency.record(nanos / 1000);
+    }
+
+    /**
+     * Records the time from a FILE request's arrival to its transfer header.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    void fileServed(long nanos) {
+        fileLatency.record(nanos / 1000);
+    }
+
+    /**
+     * Records a finished transfer.
+     *
+     * @param bytes       Payload bytes delivered.
+     * @param nanos       Time from header to the last ACK.
+     * @param retransmits Packets sent more than once.
+     * @param complete    Whether the leecher acknowledged everything.
+     */
+    void transferEnded(long bytes, long nanos, int retransmits, boolean complete) {
+        this.retransmits.add(retransmits);
+        if (complete) {
+            transfersCompleted.increment();
+            transferRate.record((long) (bytes * 1e9 / Math.max(1, nanos)));
+        } else {
+            transfersFailed.increment();
+        }
+    }
+
+    /**
+     * @return A one-line summary for the periodic snapshot log.
+     */
+    public String snapshot() {
+        return String.format(Locale.ROOT,
+                "sessions=%d sent=%d/%dB received=%d/%dB retransmits=%d bufferFull=%d sendDropped=%d unroutedAcks=%d "
+                        + "transfers=%d ok/%d failed rate p50=%dB/s list=%d p99=%dus stat=%d p99=%dus file=%d p99=%dus "
+                        + "cache hits=%d misses=%d (%.1f%%) evictions=%d bytes=%d",
+                getActiveSessions(), getPacketsSent(), getBytesSent(), getPacketsReceived(), getBytesReceived(),
+                getRetransmits(), getSendBufferFull(), getSendDropped(), getUnroutedAcks(),
+                getTransfersCompleted(), getTransfersFailed(), getTransferBytesPerSecondP50(),
+                getListRequests(), getListLatencyP99Micros(), getStatRequests(), getStatLatencyP99Micros(),
+                getFileRequests(), getFileLatencyP99Micros(),
+                getCacheHits(), getCacheMisses(), 100 * getCacheHitRatio(), getCacheEvictions(), getCacheBytes());
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getSendBufferFull() {
+        return sendBufferFull.getAsLong();
+    }
+
+    @Override
+    public long getSendDropped() {
+        return sendDropped.getAsLong();
+    }
+
+    @Override
+    public long getUnroutedAcks() {
+        return unroutedAcks.sum();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.getAsInt();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return transfersCompleted.sum();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return transfersFailed.sum();
+    }
+
+    @Override
+    public long getListRequests() {
+        return listLatency.count();
+    }
+
+    @Override
+    public long getListLatencyP50Micros() {
+        return listLatency.percentile(0.50);
+    }
+
+    @Override
+    public long getListLatencyP99Micros() {
+        return listLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getStatRequests() {
+        return statLatency.count();
+    }
+
+    @Override
+    public long getStatLatencyP99Micros() {
+        return statLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getFileRequests() {
+        return fileLatency.count();
+    }
+
+    @Override
+    public long getFileLatencyP50Micros() {
+        return fileLatency.percentile(0.50);
+    }
+
+    @Override
+    public long getFileLatencyP99Micros() {
+        return fileLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getTransferBytesPerSecondP50() {
+        return transferRate.percentile(0.50);
+    }
+
+    @Override
+    public long getTransferBytesPerSecondMean() {
+        return transferRate.mean();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.hits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.misses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cache.hits();
+        long lookups = hits + cache.misses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.evictions();
+    }
+
+    @Override
+    public long getCacheBytes() {
+        return cache.allocated();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Management view of a FileServer's metrics, registered with the platform
+ * MBean server as "udp:type=FileServer,port=N". Latencies are in
+ * microseconds and percentiles are accurate to within a factor of two.
+ */
+public interface ServerMetricsMXBean {
+
+    long getPacketsSent();
+
+    long getBytesSent();
+
+    long getPacketsReceived();
+
+    long getBytesReceived();
+
+    long getRetransmits();
+
+    /**
+     * @return Sends that found the socket buffer full and had to be queued.
+     */
+    long getSendBufferFull();
+
+    /**
+     * @return Sends dropped because the queue behind a full socket buffer was
+     *         full, or because the channel refused a queued packet.
+     */
+    long getSendDropped();
+
+    /**
+     * @return ACKs that arrived for no active transfer and were dropped.
+     */
+    long getUnroutedAcks();
+
+    int getActiveSessions();
+
+    long getTransfersCompleted();
+
+    long getTransfersFailed();
+
+    long getListRequests();
+
+    long getListLatencyP50Micros();
+
+    long getListLatencyP99Micros();
+
+    long getStatRequests();
+
+    long getStatLatencyP99Micros();
+
+    long getFileRequests();
+
+    long getFileLatencyP50Micros();
+
+    long getFileLatencyP99Micros();
+
+    /**
+     * @return The median throughput of finished transfers in bytes per second.
+     */
+    long getTransferBytesPerSecondP50();
+
+    long getTransferBytesPerSecondMean();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * @return Hits over all chunk cache lookups, 0 before the first lookup.
+     */
+    double getCacheHitRatio();
+
+    long getCacheEvictions();
+
+    /**
+     * @return Direct memory held by the chunk cache in bytes.
+     */
+    long getCacheBytes();
+}
@@ -0,0 +1,10 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Identifies one transfer session: the leecher's address and port plus the transfer id.
+ *
+ * @param peer       The leecher's address and port.
+ * @param transferId The transfer id assigned by the server.
+ */
+public record SessionKey(InetSocketAddress peer, int transferId) {
+}
@@ -0,0 +1,83 @@
+/**
+ * Byte-rate limit with a bounded burst. Thread safe, so one bucket can cap
+ * the combined rate of every transfer on the server.
+ */
+public class TokenBucket {
+
+    private final double bytesPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param bytesPerSecond The sustained rate.
+     * @param burst          The most bytes that may go out back to back.
+     */
+    public TokenBucket(long bytesPerSecond, long burst) {
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.capacity = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Creates a bucket whose burst is 10 ms worth of traffic, but never less than 64 KiB.
+     *
+     * @param bytesPerSecond The sustained rate.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        this(bytesPerSecond, Math.max(64 * 1024, bytesPerSecond / 100));
+    }
+
+    /**
+     * @param bytes The size of the next send.
+     * @return 0 if the bytes may be sent now, otherwise the nanoseconds to wait.
+     */
+    public synchronized long delay(int bytes) {
+        refill();
+        return tokens >= bytes ? 0 : (long) Math.ceil((bytes - tokens) / bytesPerNano);
+    }
+
+    /**
+     * Takes the tokens for bytes if the bucket has them, checking and taking
+     * in one step so concurrent senders cannot both spend the same tokens.
+     *
+     * @param bytes The size of the next send.
+     * @return 0 if the tokens were taken, otherwise the nanoseconds to wait; nothing is taken then.
+     */
+    public synchronized long tryTake(int bytes) {
+        refill();
+        if (tokens >= bytes) {
+            tokens -= bytes;
+            return 0;
+        }
+        return (long) Math.ceil((bytes - tokens) / bytesPerNano);
+    }
+
+    /**
+     * Gives back tokens taken for bytes that were not sent after all.
+     *
+     * @param bytes The bytes not sent.
+     */
+    public synchronized void refund(int bytes) {
+        tokens = Math.min(capacity, tokens + bytes);
+    }
+
+    /**
+     * Takes tokens for bytes that are being sent. May drive the bucket into debt,
+     * which later sends pay back.
+     *
+     * @param bytes The bytes sent.
+     */
+    public synchronized void take(int bytes) {
+        refill();
+        tokens -= bytes;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * bytesPerNano);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * The text header that opens every FILE transfer:
+ *
+ *   FILE transferId offset length fileSize checksum chunkSize name
+ *
+ * offset and length give the byte range being sent (the whole file unless
+ * the leecher asked for a range); chunk i of the transfer starts at file
+ * offset (offset + i * chunkSize). checksum is the CRC32C of the whole file,
+ * which the leecher checks against the digest it builds from the chunks.
+ *
+ * @param transferId The transfer id stamped on every DATA packet.
+ * @param offset     The first file byte sent.
+ * @param length     The number of bytes sent.
+ * @param fileSize   The size of the whole file.
+ * @param checksum   The CRC32C of the whole file.
+ * @param chunkSize  The payload size of one DATA packet.
+ * @param name       The file name.
+ */
+public record TransferHeader(int transferId, long offset, long length, long fileSize, long checksum, int chunkSize,
+        String name) {
+
+    /**
+     * @return The header as sent on the wire.
+     */
+    public String format() {
+        return "FILE " + transferId + " " + offset + " " + length + " " + fileSize + " " + checksum + " " + chunkSize
+                + " " + name;
+    }
+
+    /**
+     * Parses a header.
+     *
+     * @param text The received text.
+     * @return The header, or null if the text is not a FILE header.
+     */
+    public static TransferHeader parse(String text) {
+        if (text == null || !text.startsWith("FILE ")) {
+            return null;
+        }
+        String[] parts = text.split(" ", 8);
+        if (parts.length < 8) {
+            return null;
+        }
+        try {
+            return new TransferHeader(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                    Long.parseLong(parts[4]), Long.parseLong(parts[5]), Integer.parseInt(parts[6]), parts[7]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of DATA packets in the transfer.
+     */
+    public int chunkCount() {
+        return Protocol.chunkCount(length, chunkSize);
+    }
+
+    /**
+     * @param index A chunk index.
+     * @return The file offset where that chunk starts.
+     */
+    public long chunkOffset(int index) {
+        return offset + (long) index * chunkSize;
+    }
+}
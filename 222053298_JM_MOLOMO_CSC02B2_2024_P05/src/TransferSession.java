@@ -0,0 +1,149 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One FILE transfer running on its own thread.
+ *
+ * The server's dispatcher thread owns the socket's receive side and hands
+ * this session the ACKs addressed to it, so a slow or large transfer never
+ * holds up other leechers or the LIST/FILE control path.
+ */
+public class TransferSession implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(TransferSession.class.getName());
+
+    private final FileServer server;
+    private final SessionKey key;
+    private final CatalogEntry entry;
+    private final File file;
+    private final long offset;
+    private final long length;
+    private final int chunkSize;
+    private final boolean deflate;
+    private final String tag;
+    private final long requestedAt;
+    private final BlockingQueue<ByteBuffer> acks = new LinkedBlockingQueue<>();
+
+    /**
+     * Creates a session for sending a file.
+     *
+     * @param server      The server that owns the transport.
+     * @param key         The session key; its transfer id is stamped on each packet.
+     * @param entry       The catalog entry of the file, with its checksum.
+     * @param file        The file to send.
+     * @param offset      The first byte to send.
+     * @param length      The number of bytes to send, or -1 for the rest of the file.
+     * @param chunkSize   The negotiated payload size of one DATA packet.
+     * @param deflate     Whether to compress each chunk.
+     * @param tag         The request's "#tag " to put in front of the header, or "".
+     * @param requestedAt System.nanoTime() when the FILE request arrived.
+     */
+    public TransferSession(FileServer server, SessionKey key, CatalogEntry entry, File file, long offset, long length,
+            int chunkSize, boolean deflate, String tag, long requestedAt) {
+        this.server = server;
+        this.key = key;
+        this.entry = entry;
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.deflate = deflate;
+        this.tag = tag;
+        this.requestedAt = requestedAt;
+    }
+
+    public SessionKey key() {
+        return key;
+    }
+
+    /**
+     * Queues an ACK packet for this session. Called from the dispatcher thread.
+     *
+     * @param packet A pooled copy of the ACK packet; the session releases it.
+     */
+    public void offer(ByteBuffer packet) {
+        acks.offer(packet);
+    }
+
+    @Override
+    public void run() {
+        BufferPool pool = server.packetPool(chunkSize);
+        BufferPool ackPool = server.ackPool();
+        WindowedSender sender = null;
+        ChunkDeflater deflater = null;
+        try {
+            try (ChunkSource source = server.files().open(file)) {
+                long size = source.size();
+                if (offset < 0 || offset > size) {
+                    server.send(tag + "ERR range outside file " + offset, key.peer());
+                    return;
+                }
+                long rangeLength = length < 0 ? size - offset : Math.min(length, size - offset);
+                TransferHeader header = new TransferHeader(key.transferId(), offset, rangeLength, size, entry.checksum(),
+                        chunkSize, file.getName());
+                server.send(tag + header.format(), key.peer());
+                long started = System.nanoTime();
+                server.metrics().fileServed(started - requestedAt);
+
+                WindowedSender.ChunkReader reader = (index, dst) -> {
+                    long remaining = rangeLength - (long) index * chunkSize;
+                    dst.limit(dst.position() + (int) Math.min(chunkSize, remaining));
+                    return source.read(header.chunkOffset(index), dst);
+                };
+                if (deflate) {
+                    deflater = new ChunkDeflater(reader, chunkSize);
+                    reader = deflater;
+                }
+                reader = server.cache().wrap(reader, entry, header, deflate);
+
+                sender = new WindowedSender(key.transferId(), header.chunkCount(), chunkSize, Protocol.WINDOW_SIZE, pool,
+                        reader,
+                        packet -> server.send(packet, key.peer()),
+                        CongestionControl.create(Protocol.WINDOW_SIZE), server.newPacer());
+
+                sender.pump();
+                while (!sender.isDone()) {
+                    long wait = sender.nextDeadline() - System.currentTimeMillis();
+                    ByteBuffer ack = acks.poll(Math.max(1, Math.min(wait, 1000)), TimeUnit.MILLISECONDS);
+                    if (ack != null) {
+                        sender.onAck(ack);
+                        ackPool.release(ack);
+                    } else {
+                        sender.onTimer();
+                    }
+                    sender.pump();
+                }
+                long elapsed = System.nanoTime() - started;
+                server.metrics().transferEnded(rangeLength, elapsed, sender.retransmits(), sender.isComplete());
+                if (sender.isComplete()) {
+                    LOG.fine(() -> "Sent: " + file.getName() + " to " + key.peer() + ", " + rangeLength + " bytes in "
+                            + elapsed / 1_000_000 + " ms");
+                } else {
+                    LOG.warning("Transfer failed: " + file.getName() + " to " + key.peer());
+                }
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Transfer of " + file.getName() + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.endSession(this);
+            if (sender != null) {
+                sender.release();
+            }
+            if (deflater != null) {
+                deflater.close();
+            }
+            ByteBuffer ack;
+            while ((ack = acks.poll()) != null) {
+                ackPool.release(ack);
+            }
+        }
+    }
+}
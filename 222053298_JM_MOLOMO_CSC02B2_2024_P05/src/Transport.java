@@ -0,0 +1,82 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram transport used by the server engine.
+ *
+ * Two implementations exist: ChannelTransport, a non-blocking DatagramChannel
+ * served by a shared Selector thread, and BlockingTransport, the original
+ * DatagramSocket path kept as a fallback. Select one with the system property
+ * udp.transport=nio|blocking (default nio).
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Callback for received datagrams.
+     */
+    interface Receiver {
+        /**
+         * Handles one datagram. The buffer holds the packet in [0, limit) and is
+         * only valid for the duration of the call; copy anything that must be kept.
+         *
+         * @param packet The received packet.
+         * @param from   The sender's address.
+         */
+        void onPacket(ByteBuffer packet, InetSocketAddress from);
+    }
+
+    /** Largest datagram payload either transport will receive. */
+    int MAX_DATAGRAM = 65507;
+
+    /**
+     * Starts delivering received datagrams to the receiver.
+     *
+     * @param receiver The callback for received packets.
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Sends the remaining bytes of a buffer as one datagram. Safe to call from any thread.
+     *
+     * @param packet The packet to send; its position is advanced.
+     * @param to     The destination address.
+     */
+    void send(ByteBuffer packet, InetSocketAddress to) throws IOException;
+
+    /**
+     * @return The local port the transport is bound to.
+     */
+    int localPort();
+
+    /**
+     * @return The number of sends that found the socket buffer full, or 0 if
+     *         the transport blocks instead.
+     */
+    default long sendBufferFull() {
+        return 0;
+    }
+
+    /**
+     * @return The number of packets dropped because too many were already
+     *         queued behind a full socket buffer or the channel refused one
+     *         once queued, or 0 if the transport never queues.
+     */
+    default long sendDropped() {
+        return 0;
+    }
+
+    /**
+     * Opens the transport selected by the udp.transport system property.
+     *
+     * @param port The local port to bind, or 0 for any free port.
+     * @return The bound transport.
+     */
+    static Transport open(int port) throws IOException {
+        if ("blocking".equals(System.getProperty("udp.transport"))) {
+            return new BlockingTransport(port);
+        }
+        return new ChannelTransport(SelectorLoop.shared(), port);
+    }
+}
@@ -1,10 +1,12 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
@@ -23,22 +25,27 @@ import java.net.*;
 public class UDP extends Application {
 
     private StackPane pane;
-    private DatagramSocket socket;
+    private FileServer server;
     
     private InetAddress remoteAddress;
     private int remotePort = 12345;
     private int localPort = 12345; 
 
     /**
-     * Initializes the application by setting up the UI and creating a UDP socket.
-     * Calls the method to receive messages continuously in the background.
+     * Initializes the application by setting up the UI. No sockets are opened
+     * here; the sender starts in init() and the leecher screen owns its client.
      */
     public UDP() {
         this.pane = new StackPane();
         UIOne();
+    }
 
+    /**
+     * Starts the sender engine before the stage is shown.
+     */
+    @Override
+    public void init() {
         try {
-            socket = new DatagramSocket(localPort);
             receiveMessage(); // Starts listening for incoming messages
         } catch (IOException e) {
             e.printStackTrace();
@@ -53,6 +60,20 @@ public class UDP extends Application {
         primaryStage.show();
     }
 
+    /**
+     * Stops the sender engine when the window closes.
+     */
+    @Override
+    public void stop() {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Sets up the first UI screen with buttons to select either sender or leecher mode.
      */
@@ -95,6 +116,13 @@ public class UDP extends Application {
         btnChooseFile.setPrefSize(150, 35);
         btnChooseFile.setOnAction(e -> upload(Status));
 
+        // Choose Folder button for uploading every file in a folder
+        Button btnChooseFolder = new Button("Choose Folder");
+        btnChooseFolder.setLayoutX(335);
+        btnChooseFolder.setLayoutY(65);
+        btnChooseFolder.setPrefSize(120, 35);
+        btnChooseFolder.setOnAction(e -> uploadFolder(Status));
+
         // List button to fetch available files
         Button btnList = new Button("List");
         btnList.setLayoutX(25);
@@ -108,7 +136,7 @@ public class UDP extends Application {
         TA.setLayoutX(130);
         TA.setLayoutY(120);
         
-        mainP.getChildren().addAll(btnSender, btnLeecher, btnChooseFile, Status, btnList, TA);
+        mainP.getChildren().addAll(btnSender, btnLeecher, btnChooseFile, Status, btnChooseFolder, btnList, TA);
         pane.getChildren().add(mainP);
     }
 
@@ -116,12 +144,13 @@ public class UDP extends Application {
      * Switches to the second UI screen for downloading files.
      */
     private void UITwo() {
-        new UITwoClass(pane, socket, remoteAddress, remotePort);
+        new UITwoClass(pane, new InetSocketAddress(remoteAddress, remotePort), this::UIOne);
     }
 
     /**
      * Handles the file upload functionality.
-     * The file is copied to the "data/sender" folder, and its entry is logged in "List.txt".
+     * The file is copied to the "data/sender" folder on a background thread, then its entry
+     * is logged in "List.txt" and published in the server's catalog.
      * 
      * @param status TextField containing the file ID.
      */
@@ -131,40 +160,65 @@ public class UDP extends Application {
           File selectedFile = fileChooser.showOpenDialog(null);
 
           if (selectedFile != null) {
+              int id;
               try {
-                  File destinationDir = new File("data/sender");
-                  if (!destinationDir.exists()) {
-                      destinationDir.mkdirs(); // Create the directory if it doesn't exist
-                  }
-
-                  File destinationFile = new File(destinationDir, selectedFile.getName());
-                  PrintWriter fileWriter = new PrintWriter(new FileOutputStream("data/sender/List.txt", true));
-                  
-                  fileWriter.write(status.getText()+ " " + selectedFile.getName() + "\n");
-                  fileWriter.flush();
-                  fileWriter.close();
-
-                  // Copy file to destination
-                  try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(selectedFile));
-                       BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(destinationFile))) {
-                      byte[] byteArray = new byte[1024];
-                      int bytesRead;
-                      while ((bytesRead = bis.read(byteArray)) != -1) {
-                          bos.write(byteArray, 0, bytesRead);
-                      }
-                      bos.flush();
-                      System.out.println(destinationFile.getAbsolutePath());
-                      status.setText("Success");
-                  }
-              } catch (IOException e) {
-                  e.printStackTrace();
-                  status.setText("Upload failed.");
+                  id = Integer.parseInt(status.getText().trim());
+              } catch (NumberFormatException e) {
+                  status.setText("ID must be a number.");
+                  return;
+              }
+              if (server == null) {
+                  status.setText("Sender not running.");
+                  return;
               }
+              // Copy file to destination off the FX thread, so a large file does not freeze the window
+              status.setText("Uploading...");
+              new Thread(() -> {
+                  try {
+                      CatalogEntry entry = new Ingest(server.catalog()).file(selectedFile, id);
+                      System.out.println(server.catalog().file(entry).getAbsolutePath());
+                      Platform.runLater(() -> status.setText("Success"));
+                  } catch (IOException e) {
+                      e.printStackTrace();
+                      Platform.runLater(() -> status.setText("Upload failed."));
+                  }
+              }).start();
           } else {
               status.setText("No file selected.");
           }
     }
 
+    /**
+     * Uploads every file in a folder, copying them in parallel on a background
+     * thread. The files get the ids after the highest one in use.
+     *
+     * @param status TextField showing the result.
+     */
+    private void uploadFolder(TextField status) {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Select Folder to Upload");
+        File selectedDir = directoryChooser.showDialog(null);
+        if (selectedDir == null) {
+            status.setText("No folder selected.");
+            return;
+        }
+        if (server == null) {
+            status.setText("Sender not running.");
+            return;
+        }
+        status.setText("Uploading...");
+        new Thread(() -> {
+            try {
+                int count = new Ingest(server.catalog()).directory(selectedDir).size();
+                System.out.println("Uploaded " + count + " files from " + selectedDir.getAbsolutePath());
+                Platform.runLater(() -> status.setText(count + " files added"));
+            } catch (IOException e) {
+                e.printStackTrace();
+                Platform.runLater(() -> status.setText("Upload failed."));
+            }
+        }).start();
+    }
+
     /**
      * Fetches the list of files from "data/Leecher/List.txt" and displays it in the provided TextArea.
      * 
@@ -184,118 +238,12 @@ public class UDP extends Application {
     }
 
     /**
-     * Sends a message via UDP to the remote address.
-     * 
-     * @param message The message to send.
-     */
-    private void sendMessage(String message) {
-        if (remoteAddress != null) {
-            try {
-                byte[] msgBuffer = message.getBytes();
-                DatagramPacket packet = new DatagramPacket(msgBuffer, msgBuffer.length, remoteAddress, remotePort);
-                socket.send(packet);
-                System.out.println("Message sent: " + message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } else {
-            System.out.println("Remote address not set.");
-        }
-    }
-
-    /**
-     * Receives a response from the server and returns it as a String.
-     * 
-     * @return The received response as a string.
-     */
-    private String receiveResponse() {
-        byte[] buffer = new byte[2048];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        try {
-            socket.setSoTimeout(20000);
-            socket.receive(packet);
-            return new String(packet.getData(), 0, packet.getLength());
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    /**
-     * Continuously listens for incoming messages on the UDP socket.
-     * Processes file requests and sends files or file lists based on the received command.
+     * Continuously listens for incoming messages on localPort.
+     * Requests are served by a session-based FileServer so that concurrent
+     * leechers do not wait for each other's transfers.
      */
-    private void receiveMessage() {
-    	 new Thread(() -> {
-             byte[] buffer = new byte[2048];
-             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-             while (true) {
-                 try {
-                     socket.receive(packet);
-                     String receivedMessage = new String(packet.getData(), 0, packet.getLength());
-                     System.out.println("Message received: " + receivedMessage);
-                     String receivearray[] = receivedMessage.split(" ");
-                     
-                     // Handle LIST command
-                     if ("LIST".equals(receivearray[0])) {
-                         File listFile = new File("data/sender/List.txt");
-                         if (listFile.exists()) {
-                             try (BufferedReader reader = new BufferedReader(new FileReader(listFile))) {
-                                 String line;
-                                 while ((line = reader.readLine()) != null) {
-                                     String response = line;
-                                     DatagramPacket responsePacket = new DatagramPacket(response.getBytes(), response.getBytes().length, packet.getAddress(), packet.getPort());
-                                     socket.send(responsePacket);
-                                 }
-                             } catch (IOException e) {
-                                 e.printStackTrace();
-                             }
-                         } 
-                           
-                     // Handle FILE request
-                     } else if ("FILE".equals(receivearray[0])) {
-                         String ID = receivearray[1];
-                         try (BufferedReader reader = new BufferedReader(new FileReader(new File("data/sender/List.txt")))) {
-                             String line;
-                             while ((line = reader.readLine()) != null) {
-                                 if (line.contains(ID)) {
-                                     String[] tempArray = line.split(" ");
-                                     String fileName = tempArray[1];
-
-                                     byte[] fileNameBytes = fileName.getBytes();
-                                     DatagramPacket fileNamePacket = new DatagramPacket(fileNameBytes, fileNameBytes.length, packet.getAddress(), packet.getPort());
-                                     socket.send(fileNamePacket);  
-
-                                     File imageFile = new File("data/sender/" + fileName);
-
-                                     try (FileInputStream imageFis = new FileInputStream(imageFile)) {
-                                         byte[] bufferfile = new byte[1024]; 
-                                         int bytesRead;
-
-                                         while ((bytesRead = imageFis.read(bufferfile)) != -1) {
-                                             DatagramPacket filePacket = new DatagramPacket(bufferfile, bytesRead, packet.getAddress(), packet.getPort());
-                                             socket.send(filePacket); 
-                                         }
-
-                                         byte[] eofMessage = "EOF".getBytes();
-                                         DatagramPacket eofPacket = new DatagramPacket(eofMessage, eofMessage.length, packet.getAddress(), packet.getPort());
-                                         socket.send(eofPacket);
-                                     }
-                                     break;
-                                 }
-                             }
-                         } catch (FileNotFoundException e) {
-                             e.printStackTrace();
-                         } catch (IOException e) {
-                             e.printStackTrace();
-                         }
-                     }
-
-                 } catch (IOException e) {
-                     e.printStackTrace();
-                 }
-             }
-         }).start();
+    private void receiveMessage() throws IOException {
+        server = FileServer.open(localPort, new File("data/sender"));
     }
 
     /**
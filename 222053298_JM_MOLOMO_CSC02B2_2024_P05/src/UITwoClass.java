@@ -1,3 +1,4 @@
+import javafx.application.Platform;
 import javafx.scene.control.Button;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
@@ -5,33 +6,28 @@ import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
 
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
 
 /**
  * UI for the second screen that allows the user to switch to the leecher mode,
  * connect to the server, list available files, and download files over UDP.
+ * All networking is done by a FileClient; this class only wires it to the controls.
+ * LIST and single-stream downloads use its asynchronous side, so they share
+ * one socket and never block the FX thread.
  */
 public class UITwoClass {
 
-    private DatagramSocket socket;
-    private InetAddress remoteAddress;
-    private int remotePort;
+    private FileClient client;
 
     /**
      * Constructor that initializes the second UI screen.
      * 
-     * @param pane         The parent StackPane to display the UI.
-     * @param socket       The DatagramSocket for UDP communication.
-     * @param remoteAddress The remote address for communication.
-     * @param remotePort   The remote port for communication.
+     * @param pane     The parent StackPane to display the UI.
+     * @param server   The server to connect to until another one is chosen.
+     * @param onSender Called when the user switches back to the sender screen.
      */
-    public UITwoClass(StackPane pane, DatagramSocket socket, InetAddress remoteAddress, int remotePort) {
-        this.socket = socket;
-        this.remoteAddress = remoteAddress;
-        this.remotePort = remotePort;
+    public UITwoClass(StackPane pane, InetSocketAddress server, Runnable onSender) {
+        connect(server);
 
         pane.getChildren().clear();
         pane.setPrefSize(550, 500);
@@ -43,7 +39,8 @@ public class UITwoClass {
         btnSender.setLayoutY(0);
         btnSender.setPrefSize(60, 35);
         btnSender.setOnAction(e -> {
-            new UDP().UIOne(); // Returns to the Sender mode
+            client.close();
+            onSender.run(); // Returns to the Sender mode
         });
 
         // Leecher Button (inactive in this screen, but added for consistency)
@@ -85,14 +82,16 @@ public class UITwoClass {
         btnList.setLayoutY(180);
         btnList.setPrefSize(100, 35);
         btnList.setOnAction(e -> {
-            new Thread(() -> {
-                sendMessage("LIST");
-                String response = receiveResponse();
-                TA.appendText(response + "\n");
-                if (response != null) {
-                    System.out.println("Response received: " + response);
+            client.async().list().whenComplete((files, ex) -> Platform.runLater(() -> {
+                if (ex != null) {
+                    ex.printStackTrace();
+                    return;
                 }
-            }).start();
+                for (CatalogEntry entry : files) {
+                    TA.appendText(entry.line() + "\n");
+                }
+                System.out.println("Response received: " + files.size() + " files");
+            }));
         });
 
         // TextField to input the file ID for downloading
@@ -107,8 +106,15 @@ public class UITwoClass {
         btnChooseFile.setLayoutX(1);
         btnChooseFile.setLayoutY(120);
         btnChooseFile.setPrefSize(150, 35);
-        btnChooseFile.setOnAction(e -> {
-            new Thread(() -> downloadFile(id.getText())).start();
+        btnChooseFile.setOnAction(e -> downloadFile(id.getText()));
+
+        // Button to download the selected file over several parallel streams
+        Button btnParallel = new Button("PARALLEL");
+        btnParallel.setLayoutX(210);
+        btnParallel.setLayoutY(120);
+        btnParallel.setPrefSize(100, 35);
+        btnParallel.setOnAction(e -> {
+            new Thread(() -> downloadParallel(id.getText())).start();
         });
 
         // Button to connect to the server with the specified host and port
@@ -118,110 +124,83 @@ public class UITwoClass {
         btnConnect.setLayoutY(65);
         btnConnect.setOnAction(e -> {
             try {
-                this.remoteAddress = InetAddress.getByName(Host.getText());
-                this.remotePort = Integer.parseInt(Port.getText());
+                InetSocketAddress address = new InetSocketAddress(Host.getText(), Integer.parseInt(Port.getText()));
+                if (address.isUnresolved()) {
+                    txtStatus.setText("Connection failed");
+                    return;
+                }
+                client.close();
+                connect(address);
                 txtStatus.setText("Connected");
-                System.out.println("Connected to " + remoteAddress + " on port " + remotePort);
-            } catch (UnknownHostException ex) {
+                System.out.println("Connected to " + address);
+            } catch (IllegalArgumentException ex) {
                 ex.printStackTrace();
                 txtStatus.setText("Connection failed");
             }
         });
 
-        mainPane.getChildren().addAll(btnSender, btnLeecher, Host, Port, btnConnect, txtStatus, btnChooseFile, btnList, TA, id);
+        mainPane.getChildren().addAll(btnSender, btnLeecher, Host, Port, btnConnect, txtStatus, btnChooseFile, btnParallel, btnList, TA, id);
         pane.getChildren().addAll(mainPane);
     }
 
     /**
-     * Sends a message to the remote server via UDP.
+     * Replaces the client with one for the given server.
      * 
-     * @param message The message to send.
+     * @param server The server address.
      */
-    private void sendMessage(String message) {
-        if (remoteAddress != null) {
-            try {
-                byte[] msgBuffer = message.getBytes();
-                DatagramPacket packet = new DatagramPacket(msgBuffer, msgBuffer.length, remoteAddress, remotePort);
-                socket.send(packet);
-                System.out.println("Message sent: " + message);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } else {
-            System.out.println("Remote address not set.");
+    private void connect(InetSocketAddress server) {
+        try {
+            client = new FileClient(server);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * Receives a response from the remote server via UDP.
+     * Downloads a file from the server based on the file ID over the client's
+     * own socket, alongside any LIST in flight. Progress is kept in a sidecar
+     * next to the partial file, so a download that stopped halfway resumes
+     * with only the missing ranges.
      * 
-     * @return The received response as a string.
+     * @param fileId The ID of the file to download.
      */
-    private String receiveResponse() {
-        byte[] buffer = new byte[2048];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    private void downloadFile(String fileId) {
+        int id;
         try {
-            socket.setSoTimeout(20000);
-            socket.receive(packet);
-            return new String(packet.getData(), 0, packet.getLength());
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            id = Integer.parseInt(fileId.trim());
+        } catch (NumberFormatException ex) {
+            ex.printStackTrace();
+            return;
         }
+        client.async().get(id, new File("data/leecher")).whenComplete((outputFile, ex) -> {
+            if (ex != null) {
+                ex.printStackTrace();
+            } else {
+                System.out.println("Downloaded: " + outputFile.getName());
+            }
+        });
     }
 
     /**
-     * Downloads a file from the server based on the file ID.
+     * Downloads a file over several concurrent ranged streams.
      * 
      * @param fileId The ID of the file to download.
      */
-    private void downloadFile(String fileId) {
-        try {
-            // Send request for the file
-            String requestMessage = "FILE " + fileId;
-            sendMessage(requestMessage);
-
-            // Receive file name
-            byte[] receiveBuffer = new byte[1024];
-            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            socket.receive(receivePacket);
-            String fileName = new String(receivePacket.getData(), 0, receivePacket.getLength());
-            System.out.println("File name received: " + fileName);
-
-            // Create output directory and file
-            File outputDir = new File("data/leecher");
-            if (!outputDir.exists()) {
-                outputDir.mkdirs(); // Create the directory if it doesn't exist
-            }
-            File outputFile = new File(outputDir, fileName);
-
-            // Receive and write the file content
-            try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(outputFile))) {
-                byte[] buffer = new byte[2048]; // Buffer size for file transfer
-                while (true) {
-                    DatagramPacket filePacket = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(filePacket);
-
-                    String receivedMessage = new String(filePacket.getData(), 0, filePacket.getLength());
-
-                    // Check if the file transfer is complete
-                    if ("EOF".equals(receivedMessage)) {
-                        System.out.println("File transfer complete.");
-                        break;
-                    }
-
-                    // Write the received data to the file
-                    bos.write(filePacket.getData(), 0, filePacket.getLength());
-                    bos.flush(); 
-                }
-
-                System.out.println("Downloaded: " + outputFile.getName());
-
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
-            }
+    private void downloadParallel(String fileId) {
+        download(fileId, ParallelDownloader.STREAMS);
+    }
 
-        } catch (IOException ex) {
+    /**
+     * Downloads a file into "data/leecher", resuming an earlier partial download.
+     * 
+     * @param fileId  The ID of the file to download.
+     * @param streams The number of concurrent streams.
+     */
+    private void download(String fileId, int streams) {
+        try {
+            File outputFile = client.get(Integer.parseInt(fileId.trim()), new File("data/leecher"), streams);
+            System.out.println("Downloaded: " + outputFile.getName());
+        } catch (IOException | NumberFormatException ex) {
             ex.printStackTrace();
         }
     }
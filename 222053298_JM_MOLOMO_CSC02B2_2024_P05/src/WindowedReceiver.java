@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Leecher half of the sliding-window transfer protocol.
+ *
+ * Verifies each chunk's CRC32C, buffers chunks that arrive ahead of a gap,
+ * hands chunks to the writer in sequence order, and builds ACK packets
+ * carrying the next expected sequence plus selective ACK bits for the chunks
+ * already buffered. A corrupted chunk is dropped, so it stays unacknowledged
+ * and the sender retransmits it. Compressed chunks are inflated after their
+ * CRC is checked, and the writer is given the CRC of the inflated bytes, so
+ * it always sees the file's own chunks whatever the encoding on the wire.
+ */
+public class WindowedReceiver {
+
+    /**
+     * Consumes chunks in sequence order.
+     */
+    public interface ChunkWriter {
+        /**
+         * Writes one chunk.
+         *
+         * @param index   Zero-based chunk index.
+         * @param payload The chunk bytes in [position, limit); heap or direct.
+         * @param crc     The verified CRC32C of the payload bytes.
+         */
+        void write(int index, ByteBuffer payload, long crc) throws IOException;
+    }
+
+    private final int transferId;
+    private final int chunkCount;
+    private final int chunkSize;
+    private final int window;
+    private final ChunkWriter writer;
+
+    private final ByteBuffer[] chunks;
+    private final long[] crcs;
+    private final boolean[] present;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer inflated;
+    private Inflater inflater;
+
+    private int next;
+    private int corrupted;
+
+    /**
+     * Creates a receiver for one transfer.
+     *
+     * @param transferId The transfer id expected on each packet.
+     * @param chunkCount The number of chunks in the file.
+     * @param chunkSize  The payload size of one chunk.
+     * @param window     The number of chunks that may be buffered ahead of a gap.
+     * @param writer     Destination for in-order chunks.
+     */
+    public WindowedReceiver(int transferId, int chunkCount, int chunkSize, int window, ChunkWriter writer) {
+        this.transferId = transferId;
+        this.chunkCount = chunkCount;
+        this.window = window;
+        this.chunkSize = chunkSize;
+        this.writer = writer;
+        this.chunks = new ByteBuffer[window];
+        for (int i = 0; i < window; i++) {
+            chunks[i] = ByteBuffer.allocate(chunkSize);
+        }
+        this.crcs = new long[window];
+        this.present = new boolean[window];
+    }
+
+    /**
+     * Processes a DATA packet.
+     *
+     * @param buf The packet, in any ByteBuffer, heap or direct.
+     * @return true if the packet belonged to this transfer.
+     */
+    public boolean onData(ByteBuffer buf) throws IOException {
+        if (buf.limit() < Protocol.DATA_HEADER || !Protocol.isData(buf) || Protocol.transferId(buf) != transferId) {
+            return false;
+        }
+        int seq = Protocol.seq(buf);
+        if (seq < next || seq >= next + window || seq >= chunkCount) {
+            return true; // duplicate or outside the window, just re-ACK
+        }
+        crc.reset();
+        crc.update(buf.position(Protocol.DATA_HEADER));
+        long checksum = Protocol.crc(buf);
+        if (crc.getValue() != checksum) {
+            corrupted++;
+            return true; // leave the hole so the sender retransmits
+        }
+        buf.position(Protocol.DATA_HEADER);
+        ByteBuffer payload = buf;
+        if (Protocol.type(buf) == Protocol.TYPE_DATA_DEFLATE) {
+            payload = inflate(buf);
+            if (payload == null) {
+                corrupted++;
+                return true;
+            }
+            crc.reset();
+            crc.update(payload);
+            payload.rewind();
+            checksum = crc.getValue();
+        }
+        if (seq == next) {
+            writer.write(seq, payload, checksum);
+            next++;
+            drain();
+        } else {
+            int slot = seq % window;
+            if (!present[slot]) {
+                chunks[slot].clear();
+                chunks[slot].put(payload).flip();
+                crcs[slot] = checksum;
+                present[slot] = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the current acknowledgement state.
+     *
+     * @param buf Destination buffer of at least Protocol.ACK_LENGTH bytes, flipped on return.
+     */
+    public void writeAck(ByteBuffer buf) {
+        long sack = 0;
+        for (int i = 0; i < 64 && i + 1 < window; i++) {
+            int seq = next + 1 + i;
+            if (seq >= chunkCount) {
+                break;
+            }
+            if (present[seq % window]) {
+                sack |= 1L << i;
+            }
+        }
+        Protocol.putAck(buf, transferId, next, sack);
+    }
+
+    public boolean isComplete() {
+        return next == chunkCount;
+    }
+
+    /**
+     * @return The number of chunks dropped because their CRC did not match.
+     */
+    public int corrupted() {
+        return corrupted;
+    }
+
+    public int transferId() {
+        return transferId;
+    }
+
+    /**
+     * Inflates a compressed payload into a reused buffer.
+     *
+     * @param buf The packet, positioned at the payload.
+     * @return The inflated chunk, or null if it does not inflate to at most one chunk.
+     */
+    private ByteBuffer inflate(ByteBuffer buf) {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflated = ByteBuffer.allocate(chunkSize);
+        }
+        inflater.reset();
+        inflater.setInput(buf);
+        inflated.clear();
+        try {
+            inflater.inflate(inflated);
+        } catch (DataFormatException e) {
+            return null;
+        }
+        return inflater.finished() ? inflated.flip() : null;
+    }
+
+    private void drain() throws IOException {
+        while (next < chunkCount && present[next % window]) {
+            int slot = next % window;
+            writer.write(next, chunks[slot], crcs[slot]);
+            present[slot] = false;
+            next++;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Sender half of the sliding-window transfer protocol.
+ *
+ * Keeps up to a window of sequence-numbered chunks in flight, retransmits a
+ * chunk when its timer expires or when the leecher's selective ACKs show a
+ * hole, and slides the window forward as chunks are acknowledged.
+ * How much of the window may be used is decided by a CongestionControl fed
+ * with the ACK and loss feedback, and new packets are spaced out by a Pacer
+ * holding the transfer's and the server's rate caps.
+ * The class is driven by the caller: call pump() to fill the window,
+ * onAck() for every ACK packet and onTimer() once nextDeadline() has passed.
+ */
+public class WindowedSender {
+
+    /**
+     * Supplies the payload of a chunk.
+     */
+    public interface ChunkReader {
+        /**
+         * Reads one chunk into the buffer.
+         *
+         * @param index Zero-based chunk index.
+         * @param dst   Destination buffer, positioned at the payload start with
+         *              exactly one chunk remaining. Byte 0 holds TYPE_DATA; a
+         *              reader that leaves a compressed payload sets it to
+         *              TYPE_DATA_DEFLATE.
+         * @return The number of payload bytes written.
+         */
+        int read(int index, ByteBuffer dst) throws IOException;
+    }
+
+    /**
+     * Delivers an encoded packet to the leecher.
+     */
+    public interface PacketOut {
+        void send(ByteBuffer packet) throws IOException;
+    }
+
+    private static final long MIN_RTO = 20;
+    private static final long MAX_RTO = 2000;
+    private static final int MAX_RETRIES = 10;
+
+    private final int transferId;
+    private final int chunkCount;
+    private final int chunkSize;
+    private final int window;
+    private final BufferPool pool;
+    private final ChunkReader reader;
+    private final PacketOut out;
+    private final CongestionControl congestion;
+    private final Pacer pacer;
+    private final CRC32C crc = new CRC32C();
+
+    // One slot per in-flight sequence, indexed by seq % window
+    private final ByteBuffer[] packets;
+    private final int[] lengths;
+    private final long[] sentAt;
+    private final int[] retries;
+    private final int[] timeouts;
+    private final boolean[] acked;
+
+    private int base;
+    private int next;
+    private boolean failed;
+    private int recoverUntil;
+    private long pacedUntil;
+    private int retransmits;
+
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = 200;
+
+    /**
+     * Creates a sender for one transfer.
+     *
+     * @param transferId The transfer id stamped on each packet.
+     * @param chunkCount The number of chunks in the file.
+     * @param chunkSize  The payload size of one chunk.
+     * @param window     The maximum number of unacknowledged chunks.
+     * @param pool       Pool supplying one packet buffer per window slot.
+     * @param reader     Source of chunk payloads.
+     * @param out        Sink for encoded packets.
+     * @param congestion Decides how much of the window may be in flight.
+     * @param pacer      Rate caps new packets must respect.
+     */
+    public WindowedSender(int transferId, int chunkCount, int chunkSize, int window, BufferPool pool,
+            ChunkReader reader, PacketOut out, CongestionControl congestion, Pacer pacer) {
+        this.transferId = transferId;
+        this.chunkCount = chunkCount;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.pool = pool;
+        this.reader = reader;
+        this.out = out;
+        this.congestion = congestion;
+        this.pacer = pacer;
+        this.packets = new ByteBuffer[window];
+        this.lengths = new int[window];
+        this.sentAt = new long[window];
+        this.retries = new int[window];
+        this.timeouts = new int[window];
+        this.acked = new boolean[window];
+    }
+
+    /**
+     * Sends new chunks while the congestion window has room and the pacer allows.
+     */
+    public void pump() throws IOException {
+        pacedUntil = 0;
+        while (!failed && next < chunkCount && next - base < Math.min(window, congestion.window())) {
+            long wait = pacer.tryAcquire(Protocol.DATA_HEADER + chunkSize);
+            if (wait > 0) {
+                pacedUntil = System.currentTimeMillis() + Math.max(1, wait / 1_000_000);
+                return;
+            }
+            int slot = next % window;
+            if (packets[slot] == null) {
+                packets[slot] = pool.acquire();
+            }
+            ByteBuffer buf = packets[slot];
+            buf.clear().position(Protocol.DATA_HEADER).limit(Protocol.DATA_HEADER + chunkSize);
+            buf.put(0, Protocol.TYPE_DATA);
+            int n = reader.read(next, buf);
+            // Checksum once; retransmissions reuse the header
+            crc.reset();
+            crc.update(buf.flip().position(Protocol.DATA_HEADER));
+            Protocol.putDataHeader(buf, buf.get(0), transferId, next, crc.getValue());
+            lengths[slot] = Protocol.DATA_HEADER + n;
+            retries[slot] = 0;
+            timeouts[slot] = 0;
+            acked[slot] = false;
+            transmit(slot);
+            next++;
+        }
+    }
+
+    /**
+     * Processes an ACK packet from the leecher.
+     *
+     * @param buf The packet.
+     */
+    public void onAck(ByteBuffer buf) throws IOException {
+        if (buf.limit() < Protocol.ACK_LENGTH || Protocol.type(buf) != Protocol.TYPE_ACK
+                || Protocol.transferId(buf) != transferId) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int cumulative = Math.min(Protocol.seq(buf), next);
+        long sack = Protocol.sack(buf);
+
+        int newlyAcked = 0;
+        for (int seq = base; seq < cumulative; seq++) {
+            newlyAcked += markAcked(seq, now);
+        }
+        int highest = cumulative - 1;
+        for (int i = 0; i < 64; i++) {
+            int seq = cumulative + 1 + i;
+            if (seq >= next) {
+                break;
+            }
+            if ((sack & (1L << i)) != 0) {
+                newlyAcked += markAcked(seq, now);
+                highest = seq;
+            }
+        }
+        while (base < next && acked[base % window]) {
+            base++;
+        }
+        if (newlyAcked > 0) {
+            congestion.onAck(newlyAcked);
+        }
+
+        // Holes below the highest selectively acked chunk count as a NACK once
+        // they have been out for about a round trip
+        long holdOff = Math.max(MIN_RTO, srtt < 0 ? rto : srtt);
+        for (int seq = base; seq < highest; seq++) {
+            int slot = seq % window;
+            if (!acked[slot] && now - sentAt[slot] >= holdOff) {
+                lost(seq, false);
+                retries[slot]++;
+                transmit(slot);
+            }
+        }
+    }
+
+    /**
+     * Retransmits every chunk whose timer has expired.
+     */
+    public void onTimer() throws IOException {
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        for (int seq = base; seq < next && !failed; seq++) {
+            int slot = seq % window;
+            if (!acked[slot] && now - sentAt[slot] >= rto) {
+                expired = true;
+                lost(seq, true);
+                retransmit(slot);
+            }
+        }
+        if (expired) {
+            rto = Math.min(rto * 2, MAX_RTO);
+        }
+    }
+
+    /**
+     * @return The time in milliseconds at which the oldest in-flight chunk times
+     *         out, or the pacer lets the next new chunk go, whichever is first.
+     */
+    public long nextDeadline() {
+        long deadline = pacedUntil > 0 ? pacedUntil : Long.MAX_VALUE;
+        for (int seq = base; seq < next; seq++) {
+            int slot = seq % window;
+            if (!acked[slot]) {
+                deadline = Math.min(deadline, sentAt[slot] + rto);
+            }
+        }
+        return deadline;
+    }
+
+    public boolean isComplete() {
+        return base == chunkCount;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public boolean isDone() {
+        return failed || isComplete();
+    }
+
+    /**
+     * @return The number of packets sent again after a timeout or a hole in the ACKs.
+     */
+    public int retransmits() {
+        return retransmits;
+    }
+
+    /**
+     * Returns the packet buffers to the pool. Call once the transfer has ended.
+     */
+    public void release() {
+        for (int i = 0; i < window; i++) {
+            if (packets[i] != null) {
+                pool.release(packets[i]);
+                packets[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return 1 if the chunk was newly acknowledged, otherwise 0.
+     */
+    private int markAcked(int seq, long now) {
+        int slot = seq % window;
+        if (seq < base || acked[slot]) {
+            return 0;
+        }
+        acked[slot] = true;
+        // Karn's rule: only sample chunks that were sent once
+        if (retries[slot] == 0) {
+            sampleRtt(now - sentAt[slot]);
+        }
+        return 1;
+    }
+
+    /**
+     * Reports a loss to the congestion control, once per window of data:
+     * further losses among chunks sent before the first one was noticed
+     * belong to the same congestion event.
+     */
+    private void lost(int seq, boolean timeout) {
+        if (seq >= recoverUntil) {
+            congestion.onLoss(timeout);
+            recoverUntil = next;
+        }
+    }
+
+    private void sampleRtt(long sample) {
+        if (srtt < 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + 4 * rttvar));
+    }
+
+    private void retransmit(int slot) throws IOException {
+        retries[slot]++;
+        if (++timeouts[slot] > MAX_RETRIES) {
+            failed = true;
+            return;
+        }
+        transmit(slot);
+    }
+
+    private void transmit(int slot) throws IOException {
+        if (retries[slot] > 0) {
+            retransmits++;
+            pacer.charge(lengths[slot]);
+        }
+        sentAt[slot] = System.currentTimeMillis();
+        ByteBuffer buf = packets[slot];
+        buf.limit(lengths[slot]).position(0);
+        out.send(buf);
+    }
+}